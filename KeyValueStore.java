@@ -1,34 +1,148 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.UnmarshalException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class KeyValueStore {
-	private static ConcurrentHashMap<String, String> map = new ConcurrentHashMap<String, String>();
-    private static final Object putLock = new Object(); // Lock for synchronization
-    private static final int TCP_PORT = 4999;
-    private static final int UDP_PORT = 5000;
-    private static ExecutorService tcpThreadPool = Executors.newCachedThreadPool();
-    private static ExecutorService threadPool = Executors.newCachedThreadPool();
+	private static MeteredStorageEngine meteredEngine = new MeteredStorageEngine(new ConcurrentHashMapStorageEngine());
+	private static StorageEngine engine = meteredEngine; // shared by TCP, UDP and RMI
+	private static CacheStorageEngine cacheEngine; // outermost engine in cache mode, null otherwise
+    private static int tcpPort = 4999; // --tcp-port, --udp-port and --rmi-port, so several servers can share a host
+    private static int udpPort = 5000;
+    private static int rmiPort = 1099;
+    private static final int UDP_MAX_PAYLOAD = 65507;
+    private static final int UDP_BATCH_BYTES = 1400; // keep batch datagrams within one Ethernet frame
+    private static BoundedExecutor tcpThreadPool = new BoundedExecutor("tcp", Executors.newCachedThreadPool(), Integer.MAX_VALUE, 0);
+    private static BoundedExecutor threadPool = new BoundedExecutor("udp", Executors.newCachedThreadPool(), Integer.MAX_VALUE, 0);
+    private static String executorMode = "cached";
+    private static final Map<String, String> options = new HashMap<String, String>();
     private static volatile boolean shutdownServer = false;
-    private static final Object socketLock = new Object();
     
     //main code to handle redirection for server-client connection using udp, tcp, rmi
     public static void main(String[] args) throws IOException {	 
     	if (args.length < 2) {
-            System.out.println("Usage: java KeyValueStore [tcp/udp] [server/client]");
+            System.out.println("Usage: java KeyValueStore [tcp/tcp-nio/udp/rmi/all] [server/client/bench/cluster] [--executor=virtual|cached|fixed:N] [--storage=chm|log:DIR|offheap|sharded:N|compact] [--wal=FILE --fsync=always|group|os] [--snapshot-dir=DIR] [--log-level=debug|info|warn|error] [--tcp-port=N --udp-port=N --rmi-port=N] [--max-threads=N --queue-limit=N --max-connections=N]");
             return;
         }
 
         String protocol = args[0].toLowerCase();
         String mode = args[1].toLowerCase();
+        for (int i = 2; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                System.out.println("Ignoring unknown argument: " + args[i]);
+                continue;
+            }
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                options.put(args[i].substring(2).toLowerCase(), "true");
+            } else {
+                options.put(args[i].substring(2, eq).toLowerCase(), args[i].substring(eq + 1));
+            }
+        }
+        tcpPort = Integer.parseInt(getOption("tcp-port", String.valueOf(tcpPort)));
+        udpPort = Integer.parseInt(getOption("udp-port", String.valueOf(udpPort)));
+        rmiPort = Integer.parseInt(getOption("rmi-port", String.valueOf(rmiPort)));
+        if ("cluster".equals(mode)) {
+            startClusterClient();
+            return;
+        }
+        if ("bench".equals(mode)) {
+            try {
+                new LoadGenerator(protocol).run();
+            } catch (Exception e) {
+                System.out.println("Benchmark failed: " + e.getMessage());
+            }
+            return;
+        }
+        if ("server".equals(mode)) {
+            try {
+                Log.configure(getOption("log-level", "info"), Double.parseDouble(getOption("log-rate", "10")));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid --log-level or --log-rate. Use debug, info, warn or error, and a number of messages per second.");
+                return;
+            }
+            configureExecutors(getOption("executor", "cached"));
+            configureStorage(getOption("storage", "chm"));
+            registerMetricsMBean();
+            if (options.containsKey("replicaof")) {
+                replicaLink = new ReplicaLink(getOption("replicaof", null));
+                Thread link = new Thread(replicaLink, "replica-link");
+                link.setDaemon(true);
+                link.start();
+                Log.info("Replica of " + replicaLink.primary + ", writes are refused");
+            }
+        }
 
         switch (protocol) {
         case "tcp":
@@ -38,6 +152,13 @@ public class KeyValueStore {
                 startTcpClient();
             }
             break;
+        case "tcp-nio":
+            if ("server".equals(mode)) {
+                startNioTcpServer();
+            } else if ("client".equals(mode)) {
+                startTcpClient(); // same line protocol as the blocking server
+            }
+            break;
         case "udp":
             if ("server".equals(mode)) {
                 startUdpServer();
@@ -52,480 +173,7342 @@ public class KeyValueStore {
                 startRmiClient();
             }
             break;
+        case "all":
+            if ("server".equals(mode)) {
+                startAllServers();
+            } else {
+                System.out.println("Connect to an 'all' server with the tcp, udp or rmi client.");
+            }
+            break;
         default:
-            System.out.println("Invalid protocol. Use 'tcp', 'udp', or 'rmi'.");
+            System.out.println("Invalid protocol. Use 'tcp', 'tcp-nio', 'udp', 'rmi' or 'all'.");
         }
     }
-    
-    // TCP Server code
-    private static ServerSocket serverSocket = null;
-    private static void startTcpServer() {
-    	
-        try {
-            serverSocket = new ServerSocket(TCP_PORT);
-            System.out.println("TCP Server started on port " + TCP_PORT);
 
-            while (!shutdownServer) {
-                try {
-                    System.out.println("TCP Server waiting for client connections...");
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("TCP Client connected: " + clientSocket.getInetAddress());
+    private static String getOption(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
 
-                    tcpThreadPool.submit(() -> handleClient(clientSocket));
-                } catch (SocketException e) {
-                    if (shutdownServer) {
-                        System.out.println("Server is shutting down.");
-                        break;
-                    }
-                    System.err.println("SocketException in server accept: " + e.getMessage());
-                }
+    private static void configureStorage(String spec) {
+        openStorage(spec);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                engine.close();
+            } catch (IOException e) {
+                Log.error("Error closing storage engine: " + e.getMessage());
             }
-            
-        } catch (IOException e) {
-            System.err.println("Exception in TCP Server: " + e.getMessage());
-        } finally {
+        }, "storage-shutdown"));
+        Log.info("Storage engine: " + spec);
+    }
 
-            //closeServerSocket();
-        	try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                    System.out.println("TCP Server socket closed.");
-                }
-            } catch (IOException e) {
-                System.err.println("Error closing server socket: " + e.getMessage());
+    // Closes the current engine and opens spec in its place, without another shutdown hook. For
+    // callers that switch engines many times in one process, such as the benchmarks.
+    static void replaceStorage(String spec) throws IOException {
+        StorageEngine previous = engine;
+        cacheEngine = null;
+        shardedEngine = null;
+        snapshotEngine = null;
+        snapshotDir = null;
+        writeAheadLog = null;
+        replicationLog = null;
+        previous.close();
+        openStorage(spec);
+    }
+
+    // Builds the engine chain for spec and the storage options and makes it the current engine
+    private static void openStorage(String spec) {
+        try {
+            StorageEngine base = createStorageEngine(spec);
+            boolean cacheMode = options.containsKey("cache") || options.containsKey("max-memory");
+            Map<String, Long> deadlines = cacheMode ? new HashMap<String, Long>() : null; // restored TTLs
+            if (options.containsKey("snapshot-dir")) {
+                snapshotDir = new File(getOption("snapshot-dir", "snapshot"));
+                long start = System.nanoTime();
+                long records = SnapshotFiles.load(snapshotDir, base, deadlines);
+                Log.info("Snapshot: loaded " + records + " records (" + base.size() + " keys) from " + snapshotDir + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
             }
-        	
-            //shutdownTcpThreadPool();
-        	tcpThreadPool.shutdown();
-            try {
-                if (!tcpThreadPool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    tcpThreadPool.shutdownNow();
-                    System.out.println("TCP thread pool shutdown now.");
-                }
-            } catch (InterruptedException ie) {
-                tcpThreadPool.shutdownNow();
-                Thread.currentThread().interrupt();
+            meteredEngine = new MeteredStorageEngine(base);
+            engine = meteredEngine;
+            if (snapshotDir != null) {
+                snapshotEngine = new SnapshottingStorageEngine(engine);
+                engine = snapshotEngine;
+            }
+            if (options.containsKey("wal")) {
+                WriteAheadLog.FsyncPolicy policy = WriteAheadLog.FsyncPolicy.valueOf(getOption("fsync", "group").toUpperCase());
+                WriteAheadLog wal = WriteAheadLog.open(new File(getOption("wal", "kvstore.wal")), engine, deadlines, policy,
+                        Long.parseLong(getOption("group-commit-ms", "5")), Integer.parseInt(getOption("group-commit-records", "512")));
+                engine = new DurableStorageEngine(engine, wal);
+                writeAheadLog = wal;
+                Log.info("Write-ahead log: " + getOption("wal", "kvstore.wal") + " (fsync=" + policy.name().toLowerCase() + ")");
+            }
+            if (options.containsKey("replication")) {
+                replicationLog = new ReplicationLog((int) parseBytes(getOption("repl-backlog", "16m")));
+                engine = new ReplicatingStorageEngine(engine, replicationLog);
+                Log.info("Replication: primary, backlog " + replicationLog.backlogSize() + " bytes");
+            }
+            if (cacheMode) {
+                long maxBytes = parseBytes(getOption("max-memory", "0"));
+                cacheEngine = new CacheStorageEngine(engine, maxBytes, meteredEngine::dataBytes,
+                        Integer.parseInt(getOption("eviction-samples", "5")), deadlines, writeAheadLog);
+                engine = cacheEngine;
+                Log.info("Cache mode: " + (maxBytes > 0 ? "max-memory=" + maxBytes + " bytes, sampled LRU eviction" : "no memory limit"));
             }
+        } catch (IllegalArgumentException | IOException e) {
+            Log.error("Could not open storage engine: " + e.getMessage());
+            System.exit(1);
         }
     }
 
-    private static void handleClient(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                String response = processCommand(inputLine);
-                out.println(response);
+    // "64m", "512k", "2g" or plain bytes
+    private static long parseBytes(String size) {
+        String s = size.trim().toLowerCase();
+        int shift = s.endsWith("k") ? 10 : s.endsWith("m") ? 20 : s.endsWith("g") ? 30 : 0;
+        return Long.parseLong(shift == 0 ? s : s.substring(0, s.length() - 1)) << shift;
+    }
 
-                if ("exit".equalsIgnoreCase(inputLine.trim())) {
+    // Interactive client for several servers: --nodes=host:port,host:port,... (their TCP ports).
+    // "addnode host:port" through the command menu entry adds a node and rebalances.
+    private static void startClusterClient() {
+        List<String> nodes = Arrays.asList(getOption("nodes", "localhost:" + tcpPort).split(","));
+        try (ClusterClient cluster = new ClusterClient(nodes, Integer.parseInt(getOption("vnodes", "160")))) {
+            System.out.println("Cluster of " + nodes.size() + " nodes: " + nodes);
+            while (true) {
+                String command = String.join(" ", getClientCommand());
+                if (command.trim().isEmpty()) {
+                    System.out.println("Invalid command format");
+                    continue;
+                }
+                System.out.println("Server says: " + cluster.execute(command));
+                if ("exit".equals(command)) {
                     break;
                 }
             }
         } catch (IOException e) {
-            System.err.println("Exception with client communication: " + e.getMessage());
-        } finally {
-        	try {
-                if (clientSocket != null && !clientSocket.isClosed()) {
-                    clientSocket.close();
-                    System.out.println("Client socket closed.");
-                }
-            } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
-            }
+            System.out.println("Cluster client failed: " + e.getMessage());
         }
     }
 
+    // Replication. A primary started with --replication keeps a ReplicationLog; a server started
+    // with --replicaof=host:port connects to the primary's TCP port, sends "sync <run id> <offset>"
+    // and from then on receives the binary stream below instead of text replies:
+    //   ["KVRP"][run id:8][start offset:8][full sync:1]
+    //   full sync only: PUT records for every entry, then a SNAPSHOT_END record
+    //   then ReplicationLog records from the start offset, with a PING record about once a second
+    // A replica that reconnects to the same primary run within the backlog skips the snapshot.
+    private static final byte[] REPLICATION_MAGIC = {'K', 'V', 'R', 'P'};
+    private static ReplicationLog replicationLog; // primary side, null unless --replication
+    private static final List<ReplicaFeed> replicaFeeds = new CopyOnWriteArrayList<ReplicaFeed>();
+    private static volatile ReplicaLink replicaLink; // replica side, null unless --replicaof
 
-    // TCP Client code
-    private static void startTcpClient() {
-    	int port = TCP_PORT;
-        Socket s;
-		try {
-			s = new Socket("localhost", port);
-			
-			//Logic
-			clientProcess(s);
-		}catch (UnknownHostException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			System.err.println("Could not connect to the TCP server. Please ensure the TCP server is running.");
-			e.printStackTrace();
-		}
+    private static final class ReplicaFeed {
+        final String peer;
+        volatile long sentOffset;
+
+        ReplicaFeed(String peer, long sentOffset) {
+            this.peer = peer;
+            this.sentOffset = sentOffset;
+        }
     }
 
-    public static void clientProcess(Socket sktserver) {
-    	PrintWriter pr;
-    	BufferedReader in;
-    	long startTime = System.nanoTime();;
-    	String[] command = {};
-		try {
-			pr = new PrintWriter(sktserver.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sktserver.getInputStream()));
-			
-			//logic
-	        
-	        do {
-	        	command = getClientCommand();
-	        	pr.println(String.join(" ", command));
+    // Runs on the connection's thread until the replica disconnects or falls out of the backlog
+    private static void serveReplica(String request, OutputStream output, String peer) throws IOException {
+        if (replicationLog == null) {
+            output.write("ERROR: Replication is off, start the primary with --replication.\n".getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            return;
+        }
+        String[] parts = request.split(" ");
+        long runId = parts.length == 3 ? Long.parseLong(parts[1]) : -1;
+        long offset = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+        long end = replicationLog.endOffset();
+        boolean full = runId != replicationLog.runId() || offset < end - replicationLog.backlogSize() || offset > end;
+        long start = full ? replicationLog.beginSnapshot() : offset;
 
-	            if ("exit".equals(command[0])) {
-	                //System.out.println("Exit command sent. Closing client socket."); // Debug line
-	                break; // Exit the loop before waiting for server's response
-	            }
-	            // Read server response if expected
-	            String response = in.readLine();
-	            System.out.println("Server says: " + response);
-	            
-	        }while (!"exit".equals(command[0]));
-	        System.out.println("Exiting client process."); // Debug line
-		} catch (IOException e) {
-			System.out.println("Exception in client process: " + e.getMessage()); // Debug line
-	        e.printStackTrace();
-		}finally {
-			
-			long endTime = System.nanoTime();
-            long duration = (endTime - startTime)/1_000_000; // milliseconds
-            System.out.println("Operation '" + command[0] + "' executed in " + duration + " ms");
-            
-	        try {
-	            if (sktserver != null && !sktserver.isClosed()) {
-	                sktserver.close(); // Ensure the socket is closed
-	                System.out.println("Client socket closed."); // Debug line
-	            }
-	        } catch (IOException e) {
-	            System.out.println("Exception while closing client socket: " + e.getMessage()); // Debug line
-	            e.printStackTrace();
-	        }
-	    }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.write(REPLICATION_MAGIC);
+        out.writeLong(replicationLog.runId());
+        out.writeLong(start);
+        out.writeBoolean(full);
+        if (full) {
+            Iterator<Map.Entry<String, String>> entries = engine.iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                out.write(ReplicationLog.encode(ReplicationLog.PUT, 0, entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8)));
+            }
+            out.write(ReplicationLog.encode(ReplicationLog.SNAPSHOT_END, 0, "", new byte[0]));
+        }
+        Log.info("Replica " + peer + " syncing from offset " + start + (full ? " after a full snapshot" : ""));
+
+        ReplicaFeed feed = new ReplicaFeed(peer, start);
+        replicaFeeds.add(feed);
+        try {
+            byte[][] chunk = {new byte[64 * 1024]};
+            long lastPing = 0;
+            while (!shutdownServer) {
+                int length = replicationLog.read(feed.sentOffset, chunk, 100);
+                if (length < 0) {
+                    Log.warn("Replica " + peer + " fell out of the replication backlog, it will resync");
+                    break;
+                }
+                out.write(chunk[0], 0, length);
+                feed.sentOffset += length;
+                long now = System.currentTimeMillis();
+                if (now - lastPing >= 1000) {
+                    ByteBuffer end8 = ByteBuffer.allocate(8).putLong(replicationLog.endOffset());
+                    out.write(ReplicationLog.encode(ReplicationLog.PING, now, "", end8.array()));
+                    lastPing = now;
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicaFeeds.remove(feed);
+        }
     }
-    private static DatagramSocket udpSocket = null;
-    private static void startUdpServer() {
 
-    	try  {
-    		udpSocket = new DatagramSocket(UDP_PORT);
-            byte[] buffer = new byte[65535];
+    // Replica side: keeps a connection to the primary, applies what it streams to the local
+    // engine and tracks how far behind it is. Reconnects after a second when the link drops.
+    private static final class ReplicaLink implements Runnable {
+        final String primary;
+        volatile boolean connected;
+        volatile long runId = -1;
+        volatile long offset = -1; // primary offset applied up to
+        volatile long primaryOffset; // primary end offset as of the last PING
+        volatile long pingTime; // primary clock, from the last PING
+        volatile long appliedTime; // primary clock, from the last applied record
+        volatile long lastIoNanos = System.nanoTime();
+
+        ReplicaLink(String primary) {
+            this.primary = primary;
+        }
 
+        @Override
+        public void run() {
+            int colon = primary.lastIndexOf(':');
             while (!shutdownServer) {
-            	System.out.println("UDP Server waiting for packets"); // Debug line
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                
+                try (Socket socket = new Socket(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)))) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream request = socket.getOutputStream();
+                    request.write(("sync " + runId + " " + offset + "\n").getBytes(StandardCharsets.UTF_8));
+                    request.flush();
+                    stream(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024)));
+                } catch (EOFException e) {
+                    Log.warn("Replication link to " + primary + " closed by the primary");
+                } catch (IOException | RuntimeException e) {
+                    Log.warn("Replication link to " + primary + " down: " + e.getMessage());
+                } finally {
+                    connected = false;
+                }
                 try {
-                    udpSocket.receive(packet);
-                } catch (SocketException e) {
-                    if (shutdownServer) {
-                        System.out.println("UDP Server shutdown initiated, stopping packet reception.");
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void stream(DataInputStream in) throws IOException {
+            byte[] magic = new byte[REPLICATION_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, REPLICATION_MAGIC)) {
+                throw new IOException("Primary refused to sync: " + new String(magic, StandardCharsets.UTF_8)
+                        + new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine());
+            }
+            long newRunId = in.readLong();
+            long start = in.readLong();
+            boolean full = in.readBoolean();
+            connected = true;
+            lastIoNanos = System.nanoTime();
+            if (full) {
+                Set<String> keys = new HashSet<String>();
+                while (true) {
+                    byte op = in.readByte();
+                    in.readLong();
+                    String[] entry = readEntry(in, in.readInt(), in.readInt());
+                    if (op == ReplicationLog.SNAPSHOT_END) {
                         break;
                     }
-                    throw e;
+                    keys.add(entry[0]);
+                    engine.put(entry[0], entry[1]);
                 }
+                // keys this replica had that the primary no longer has
+                Iterator<Map.Entry<String, String>> existing = engine.iterator();
+                while (existing.hasNext()) {
+                    String key = existing.next().getKey();
+                    if (!keys.contains(key)) {
+                        engine.remove(key);
+                    }
+                }
+                Log.info("Replica loaded a snapshot of " + keys.size() + " keys from " + primary);
+            }
+            runId = newRunId;
+            offset = start;
+            primaryOffset = Math.max(primaryOffset, start);
+            while (!shutdownServer) {
+                byte op = in.readByte();
+                long time = in.readLong();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                lastIoNanos = System.nanoTime();
+                if (op == ReplicationLog.PING) {
+                    primaryOffset = in.readLong();
+                    pingTime = time;
+                    continue;
+                }
+                String[] entry = readEntry(in, keyLength, valueLength);
+                if (op == ReplicationLog.PUT) {
+                    engine.put(entry[0], entry[1]);
+                } else {
+                    engine.remove(entry[0]);
+                }
+                appliedTime = time;
+                offset += ReplicationLog.RECORD_HEADER + keyLength + valueLength;
+            }
+        }
+
+        private static String[] readEntry(DataInputStream in, int keyLength, int valueLength) throws IOException {
+            byte[] data = new byte[keyLength + valueLength];
+            in.readFully(data);
+            return new String[] {new String(data, 0, keyLength, StandardCharsets.UTF_8),
+                    new String(data, keyLength, valueLength, StandardCharsets.UTF_8)};
+        }
+
+        long lagOffsets() {
+            return offset < 0 ? -1 : Math.max(0, primaryOffset - offset);
+        }
+
+        // How much older the applied data is than the primary's state at its last PING
+        long lagMillis() {
+            return lagOffsets() <= 0 ? 0 : Math.max(0, pingTime - appliedTime);
+        }
+    }
+
+    private static String readOnlyError(String command) {
+        return replicaLink != null && WRITE_COMMANDS.contains(command) ? "ERROR: READONLY replica of " + replicaLink.primary : null;
+    }
+
+    private static String handleReplInfo() {
+        StringBuilder sb = new StringBuilder("REPLINFO");
+        ReplicaLink link = replicaLink;
+        if (link != null) {
+            sb.append(" role=replica primary=").append(link.primary)
+                    .append(" link=").append(link.connected ? "up" : "down")
+                    .append(" offset=").append(link.offset)
+                    .append(" primary_offset=").append(link.primaryOffset)
+                    .append(" lag_offsets=").append(link.lagOffsets())
+                    .append(" lag_ms=").append(link.lagMillis())
+                    .append(" last_io_ms=").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - link.lastIoNanos));
+        } else {
+            sb.append(" role=primary");
+        }
+        if (replicationLog != null) {
+            long end = replicationLog.endOffset();
+            sb.append(" run_id=").append(replicationLog.runId())
+                    .append(" end_offset=").append(end)
+                    .append(" backlog=").append(replicationLog.backlogSize())
+                    .append(" replicas=").append(replicaFeeds.size());
+            for (ReplicaFeed feed : replicaFeeds) {
+                sb.append(" replica=").append(feed.peer).append(",sent=").append(feed.sentOffset).append(",lag=").append(end - feed.sentOffset);
+            }
+        }
+        return sb.toString();
+    }
 
-                Runnable task = new ClientHandler(udpSocket, packet);
-                threadPool.submit(task);
+    // Snapshots. save writes one on the calling connection and bgsave on a background thread; in
+    // both cases writers keep going and the snapshot reflects the store at the moment it started.
+    // The newest snapshot in --snapshot-dir is loaded at startup, before any WAL replay.
+    private static File snapshotDir; // null unless --snapshot-dir
+    private static SnapshottingStorageEngine snapshotEngine;
+    private static WriteAheadLog writeAheadLog; // null unless --wal
+    private static final AtomicBoolean saveRunning = new AtomicBoolean();
+    private static volatile long lastSaveRecords;
+    private static volatile long lastSaveTime; // epoch millis of the last completed save
+    private static final LongAdder failedSaves = new LongAdder();
+
+    private static String handleSave(String[] parts, boolean background) {
+        if (parts.length != 1) {
+            return "ERROR: Usage: " + parts[0].toLowerCase();
+        }
+        if (snapshotEngine == null) {
+            return "ERROR: Snapshots are off, start the server with --snapshot-dir=DIR.";
+        }
+        if (!saveRunning.compareAndSet(false, true)) {
+            return "ERROR: A save is already in progress.";
+        }
+        if (!background) {
+            return runSave();
+        }
+        Thread saver = new Thread(() -> Log.info("bgsave: " + runSave()), "bgsave");
+        saver.setDaemon(true);
+        saver.start();
+        return "Background save started";
+    }
+
+    // With --wal, the log records written before the snapshot point are dropped once the save is
+    // complete, so the WAL only ever holds what came after the newest snapshot
+    private static String runSave() {
+        long start = System.nanoTime();
+        WriteAheadLog wal = writeAheadLog;
+        long[] walMark = {0};
+        try {
+            CacheStorageEngine cache = cacheEngine;
+            long[] saved = SnapshotFiles.save(snapshotDir, snapshotEngine, (int) parseBytes(getOption("snapshot-segment", "16m")),
+                    () -> walMark[0] = wal != null ? wal.position() : 0, cache != null ? cache::deadlines : null);
+            lastSaveRecords = saved[0];
+            lastSaveTime = System.currentTimeMillis();
+            if (wal != null) {
+                try {
+                    Log.info("WAL: dropped " + wal.discardBefore(walMark[0]) + " bytes the snapshot already holds");
+                } catch (IOException e) {
+                    Log.warn("WAL: could not drop records before the snapshot: " + e.getMessage());
+                }
             }
-            System.out.println("UDP Server is shutting down."); 
+            return "OK saved " + saved[0] + " records in " + saved[1] + " segments ("
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)";
         } catch (IOException e) {
-            e.printStackTrace();
+            failedSaves.increment();
+            return "ERROR: Save failed: " + e.getMessage();
         } finally {
-        	
-        	//close udpSocket
-        	if (udpSocket != null && !udpSocket.isClosed()) {
-                udpSocket.close();
-                System.out.println("UDP Socket closed.");
+            saveRunning.set(false);
+        }
+    }
+
+    // Serves TCP, UDP and RMI from one process against the same storage engine
+    private static void startAllServers() {
+        startRmiServer();
+        Thread udpServer = new Thread(KeyValueStore::startUdpServer, "udp-server");
+        udpServer.start();
+        if (options.containsKey("nio")) {
+            startNioTcpServer();
+        } else {
+            startTcpServer();
+        }
+
+        // The TCP server only returns after an exit command, take the other transports down with it
+        shutdownServer = true;
+        closeUdpChannels();
+        try {
+            udpServer.join(TimeUnit.SECONDS.toMillis(60));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.exit(0); // also unexports the RMI server
+    }
+
+    // Executor mode for handleClient and ClientHandler: virtual, cached or fixed:N. UDP tasks are
+    // bounded: at most --max-threads run (N for fixed) and --queue-limit more wait, anything beyond
+    // that is turned away with BUSY. --queue-timeout-ms also sheds tasks that waited too long.
+    // A TCP connection holds its platform thread until it closes, so a queued one would get no reply
+    // for as long as the connections ahead of it stay open: TCP never queues on platform threads.
+    // cached gives every connection its own thread, so idle keep-alive clients are never refused
+    // unless --max-connections caps them; the other modes cap TCP at their thread count.
+    private static void configureExecutors(String spec) {
+        spec = spec.toLowerCase();
+        int maxThreads = Integer.parseInt(getOption("max-threads", "256"));
+        int maxConnections = Integer.parseInt(getOption("max-connections", String.valueOf(Integer.MAX_VALUE)));
+        int queueLimit = Integer.parseInt(getOption("queue-limit", "1024"));
+        long queueTimeoutMillis = Long.parseLong(getOption("queue-timeout-ms", "0"));
+        ExecutorService tcpPool;
+        ExecutorService udpPool;
+        int threads = maxThreads;
+        if ("virtual".equals(spec)) {
+            tcpPool = newVirtualThreadExecutor();
+            udpPool = newVirtualThreadExecutor();
+            if (tcpPool != null && udpPool != null) {
+                executorMode = "virtual";
+            } else {
+                // Virtual threads need JDK 21+, fall back to a bounded platform pool
+                threads = Math.max(64, 16 * Runtime.getRuntime().availableProcessors());
+                tcpPool = Executors.newFixedThreadPool(threads);
+                udpPool = Executors.newFixedThreadPool(threads);
+                executorMode = "fixed:" + threads + " (virtual threads unavailable on Java " + System.getProperty("java.version") + ")";
             }
-        	
-        	//Shutdown ThreadPool
-            threadPool.shutdown(); // Graceful shutdown of the thread pool
+        } else if (spec.startsWith("fixed:")) {
             try {
-                if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
-                    threadPool.shutdownNow();
-                    System.out.println("Forced shutdown of thread pool executed.");
-                }
-            } catch (InterruptedException ie) {
-                threadPool.shutdownNow();
+                threads = Integer.parseInt(spec.substring("fixed:".length()));
+            } catch (NumberFormatException e) {
+                threads = 0;
+            }
+            if (threads <= 0) {
+                Log.error("Invalid executor '" + spec + "'. Use virtual, cached or fixed:N.");
+                System.exit(1);
             }
+            tcpPool = Executors.newFixedThreadPool(threads);
+            udpPool = Executors.newFixedThreadPool(threads);
+            executorMode = "fixed:" + threads;
+        } else if ("cached".equals(spec)) {
+            tcpPool = Executors.newCachedThreadPool();
+            udpPool = newCachedPool(maxThreads);
+            executorMode = "cached";
+        } else {
+            Log.error("Invalid executor '" + spec + "'. Use virtual, cached or fixed:N.");
+            System.exit(1);
+            return;
         }
+        tcpThreadPool.shutdown();
+        threadPool.shutdown();
+        long queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        int tcpLimit = "cached".equals(executorMode) ? Integer.MAX_VALUE
+                : "virtual".equals(executorMode) ? threads + queueLimit : threads;
+        tcpLimit = Math.min(tcpLimit, maxConnections);
+        tcpThreadPool = new BoundedExecutor("tcp", tcpPool, tcpLimit, queueTimeoutNanos);
+        threadPool = new BoundedExecutor("udp", udpPool, threads + queueLimit, queueTimeoutNanos);
+        if (options.containsKey("rate-limit")) {
+            double rate = Double.parseDouble(getOption("rate-limit", "0"));
+            rateLimiter = new RateLimiter(rate, Double.parseDouble(getOption("rate-burst", String.valueOf(rate))));
+        }
+        Log.info("Executor mode: " + executorMode + " (queue limit " + queueLimit
+                + (rateLimiter != null ? ", " + getOption("rate-limit", "") + " commands/s per client" : "") + ")");
     }
-    
 
-    private static class ClientHandler implements Runnable {
-        private final DatagramSocket socket;
-        private final DatagramPacket packet;
+    // Grows a thread per task up to maxThreads like a cached pool, queues after that, and lets
+    // idle threads exit after a minute
+    private static ExecutorService newCachedPool(int maxThreads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static final String BUSY_ERROR = "ERROR: BUSY server is saturated, retry later.";
+    private static final String RATE_LIMITED_ERROR = "ERROR: BUSY client rate limit exceeded, retry later.";
+    private static volatile RateLimiter rateLimiter; // null unless --rate-limit
+    private static final LongAdder rateLimited = new LongAdder();
+
+    // Per-client admission check done once per command on every transport
+    private static boolean admit(String client) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter == null || limiter.tryAcquire(client)) {
+            return true;
+        }
+        rateLimited.increment();
+        return false;
+    }
+
+    private static String clientOf(SocketAddress address) {
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress().getHostAddress() : String.valueOf(address);
+    }
+
+    // Holds at most limit tasks, running or waiting. trySubmit turns new work away at once when
+    // it is full instead of letting the queue (and every queued request's latency) grow without
+    // bound, and a task that still waited longer than maxQueueNanos runs its shed action instead.
+    static final class BoundedExecutor {
+        private final String name;
+        private final ExecutorService delegate;
+        private final int limit;
+        private final long maxQueueNanos;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+
+        BoundedExecutor(String name, ExecutorService delegate, int limit, long maxQueueNanos) {
+            this.name = name;
+            this.delegate = delegate;
+            this.limit = limit;
+            this.maxQueueNanos = maxQueueNanos;
+        }
+
+        boolean trySubmit(Runnable task, Runnable onShed) {
+            int current;
+            do {
+                current = inFlight.get();
+                if (current >= limit) {
+                    rejected.increment();
+                    return false;
+                }
+            } while (!inFlight.compareAndSet(current, current + 1));
+            queued.incrementAndGet();
+            long submitted = System.nanoTime();
+            try {
+                delegate.execute(() -> {
+                    queued.decrementAndGet();
+                    try {
+                        long waited = System.nanoTime() - submitted;
+                        recordLatency("queue", name, waited);
+                        if (maxQueueNanos > 0 && waited > maxQueueNanos) {
+                            shed.increment();
+                            onShed.run();
+                        } else {
+                            task.run();
+                        }
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                queued.decrementAndGet();
+                inFlight.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+        }
+
+        int queueDepth() {
+            return queued.get();
+        }
+
+        long rejected() {
+            return rejected.sum();
+        }
+
+        long shed() {
+            return shed.sum();
+        }
+
+        void shutdown() {
+            delegate.shutdown();
+        }
+
+        void shutdownNow() {
+            delegate.shutdownNow();
+        }
+
+        boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+
+    // Per-client token buckets: --rate-limit commands per second per client address, with up to
+    // --rate-burst saved up. Buckets refill lazily when used; full (idle) ones are dropped once
+    // there are many clients, at most once a second.
+    static final class RateLimiter {
+        private static final int PRUNE_ABOVE = 65536;
+        private final double tokensPerNano;
+        private final double burst;
+        private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+        private final AtomicLong lastPrune = new AtomicLong(System.nanoTime());
+
+        RateLimiter(double perSecond, double burst) {
+            if (perSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("--rate-limit must be positive and --rate-burst at least 1");
+            }
+            this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+        }
+
+        boolean tryAcquire(String client) {
+            long now = System.nanoTime();
+            TokenBucket bucket = buckets.get(client);
+            if (bucket == null) {
+                if (buckets.size() >= PRUNE_ABOVE) {
+                    prune(now);
+                }
+                bucket = buckets.computeIfAbsent(client, c -> new TokenBucket(burst, now));
+            }
+            return bucket.tryAcquire(now, tokensPerNano, burst);
+        }
+
+        private void prune(long now) {
+            long last = lastPrune.get();
+            if (now - last < TimeUnit.SECONDS.toNanos(1) || !lastPrune.compareAndSet(last, now)) {
+                return;
+            }
+            long refillNanos = (long) (burst / tokensPerNano);
+            buckets.values().removeIf(bucket -> bucket.idleSince(now) > refillNanos);
+        }
+    }
+
+    static final class TokenBucket {
+        private double tokens;
+        private long updated;
+
+        TokenBucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.updated = now;
+        }
+
+        synchronized boolean tryAcquire(long now, double tokensPerNano, double burst) {
+            tokens = Math.min(burst, tokens + (now - updated) * tokensPerNano);
+            updated = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized long idleSince(long now) {
+            return now - updated;
+        }
+    }
+
+    // Server logging. Callers only build their message and offer it to a bounded lock-free ring;
+    // one daemon thread formats and writes everything, so a slow console never holds up a request.
+    // A full ring drops the message and counts it rather than block. Per-request messages go
+    // through a Sampler, which lets --log-rate of them per second through and reports how many
+    // it held back on the next one. --log-level sets the threshold (debug, info, warn, error).
+    static final class Log {
+        enum Level { DEBUG, INFO, WARN, ERROR }
+
+        private static final class Record {
+            final long time = System.currentTimeMillis();
+            final Level level;
+            final String thread = Thread.currentThread().getName();
+            final String message;
+
+            Record(Level level, String message) {
+                this.level = level;
+                this.message = message;
+            }
+        }
+
+        // Allows perSecond messages a second (with that many saved up) for one kind of message
+        static final class Sampler {
+            private final TokenBucket bucket = new TokenBucket(1, System.nanoTime());
+            private final AtomicLong suppressed = new AtomicLong();
+
+            void log(Level level, Supplier<String> message) {
+                if (!enabled(level)) {
+                    return;
+                }
+                double perSecond = sampleRate;
+                if (!bucket.tryAcquire(System.nanoTime(), perSecond / TimeUnit.SECONDS.toNanos(1), Math.max(1, perSecond))) {
+                    suppressed.incrementAndGet();
+                    Log.suppressed.increment();
+                    return;
+                }
+                long held = suppressed.getAndSet(0);
+                write(level, held == 0 ? message.get() : message.get() + " (" + held + " similar suppressed)");
+            }
+        }
+
+        private static final MpscRing<Record> ring = new MpscRing<Record>(8192);
+        private static final LongAdder dropped = new LongAdder();
+        private static final LongAdder suppressed = new LongAdder();
+        private static volatile Level threshold = Level.INFO;
+        private static volatile double sampleRate = 10;
+        private static volatile boolean sleeping;
+        private static volatile boolean closing;
+        private static final Thread writer = new Thread(Log::drain, "log-writer");
+
+        static {
+            writer.setDaemon(true);
+            writer.start();
+            // Storage shutdown and System.exit paths log too, so flush whatever is left on the way out
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::close, "log-shutdown"));
+        }
+
+        static void configure(String level, double perSecond) {
+            threshold = Level.valueOf(level.toUpperCase());
+            sampleRate = perSecond;
+        }
+
+        static boolean enabled(Level level) {
+            return level.compareTo(threshold) >= 0;
+        }
+
+        static void debug(String message) {
+            if (enabled(Level.DEBUG)) {
+                write(Level.DEBUG, message);
+            }
+        }
+
+        static void info(String message) {
+            if (enabled(Level.INFO)) {
+                write(Level.INFO, message);
+            }
+        }
+
+        static void warn(String message) {
+            if (enabled(Level.WARN)) {
+                write(Level.WARN, message);
+            }
+        }
+
+        static void error(String message) {
+            write(Level.ERROR, message);
+        }
+
+        static void error(String message, Throwable error) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            write(Level.ERROR, message + ": " + trace.toString().trim());
+        }
+
+        private static void write(Level level, String message) {
+            if (!ring.offer(new Record(level, message))) {
+                dropped.increment();
+                return;
+            }
+            if (sleeping) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        static long dropped() {
+            return dropped.sum();
+        }
+
+        static long suppressed() {
+            return suppressed.sum();
+        }
+
+        private static void drain() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            StringBuilder out = new StringBuilder();
+            StringBuilder err = new StringBuilder();
+            while (true) {
+                Record record = ring.poll();
+                if (record == null) {
+                    // Batch done: one write per stream for everything drained so far
+                    if (out.length() > 0) {
+                        System.out.print(out);
+                        System.out.flush();
+                        out.setLength(0);
+                    }
+                    if (err.length() > 0) {
+                        System.err.print(err);
+                        System.err.flush();
+                        err.setLength(0);
+                    }
+                    if (closing && ring.isEmpty()) {
+                        return;
+                    }
+                    sleeping = true;
+                    if (ring.isEmpty() && !closing) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                StringBuilder target = record.level.compareTo(Level.WARN) >= 0 ? err : out;
+                target.append(format.format(new Date(record.time))).append(' ').append(record.level)
+                        .append(" [").append(record.thread).append("] ").append(record.message).append('\n');
+                if (target.length() > 64 * 1024) {
+                    (target == err ? System.err : System.out).print(target);
+                    target.setLength(0);
+                }
+            }
+        }
+
+        private static void close() {
+            closing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(2));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final Log.Sampler connectLog = new Log.Sampler();
+    private static final Log.Sampler disconnectLog = new Log.Sampler();
+    private static final Log.Sampler clientErrorLog = new Log.Sampler(); // I/O errors caused by one client
+    private static final Log.Sampler rmiLog = new Log.Sampler();
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the source still builds on older JDKs
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null; // pre-21 JDK, or the preview feature is not enabled on JDK 19/20
+        }
+    }
+    
+    // TCP Server code
+    private static ServerSocket serverSocket = null;
+    private static void startTcpServer() {
+    	
+        try {
+            serverSocket = new ServerSocket(tcpPort);
+            Log.info("TCP Server started on port " + tcpPort);
+
+            while (!shutdownServer) {
+                try {
+                    Log.debug("TCP Server waiting for client connections...");
+                    Socket clientSocket = serverSocket.accept();
+                    connectLog.log(Log.Level.INFO, () -> "TCP Client connected: " + clientSocket.getInetAddress());
+
+                    if (!tcpThreadPool.trySubmit(() -> handleClient(clientSocket), () -> rejectClient(clientSocket))) {
+                        rejectClient(clientSocket);
+                    }
+                } catch (SocketException e) {
+                    if (shutdownServer) {
+                        Log.info("Server is shutting down.");
+                        break;
+                    }
+                    clientErrorLog.log(Log.Level.WARN, () -> "SocketException in server accept: " + e.getMessage());
+                }
+            }
+            
+        } catch (IOException e) {
+            Log.error("Exception in TCP Server: " + e.getMessage());
+        } finally {
+
+            //closeServerSocket();
+        	try {
+                if (serverSocket != null && !serverSocket.isClosed()) {
+                    serverSocket.close();
+                    Log.info("TCP Server socket closed.");
+                }
+            } catch (IOException e) {
+                Log.warn("Error closing server socket: " + e.getMessage());
+            }
+        	
+            //shutdownTcpThreadPool();
+        	tcpThreadPool.shutdown();
+            try {
+                if (!tcpThreadPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                    tcpThreadPool.shutdownNow();
+                    Log.warn("TCP thread pool shutdown now.");
+                }
+            } catch (InterruptedException ie) {
+                tcpThreadPool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Tells a connection the server has no room for it and closes it. The reply is a text line,
+    // so a binary client sees the connection close.
+    private static void rejectClient(Socket clientSocket) {
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write((BUSY_ERROR + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // the client will see the connection drop instead
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void handleClient(Socket clientSocket) {
+        connectionsOpened.increment();
+        try {
+            // The first byte decides the protocol for the whole connection
+            PushbackInputStream input = new PushbackInputStream(clientSocket.getInputStream(), 1);
+            int first = input.read();
+            String client = clientSocket.getInetAddress().getHostAddress();
+            if (first == (BINARY_MAGIC & 0xFF)) {
+                handleBinaryClient(input, clientSocket.getOutputStream(), client);
+            } else if (first >= 0) {
+                input.unread(first);
+                handleTextClient(input, clientSocket.getOutputStream(), String.valueOf(clientSocket.getRemoteSocketAddress()), client);
+            }
+        } catch (IOException e) {
+            clientErrorLog.log(Log.Level.WARN, () -> "Exception with client communication: " + e.getMessage());
+        } finally {
+            connectionsClosed.increment();
+        	try {
+                if (clientSocket != null && !clientSocket.isClosed()) {
+                    clientSocket.close();
+                    disconnectLog.log(Log.Level.INFO, () -> "Client socket closed.");
+                }
+            } catch (IOException e) {
+                clientErrorLog.log(Log.Level.WARN, () -> "Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void handleTextClient(InputStream input, OutputStream output, String peer, String client) throws IOException {
+        TextLineReader in = new TextLineReader(input);
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 64 * 1024), false)) {
+
+            String inputLine;
+            while ((inputLine = in.readLine()) != null) {
+                if (inputLine.equals("sync") || inputLine.startsWith("sync ")) {
+                    countCommand("sync");
+                    out.flush();
+                    serveReplica(inputLine, output, peer); // the connection becomes a replication stream
+                    break;
+                }
+                String response = admit(client) ? processCommand(inputLine, "tcp") : RATE_LIMITED_ERROR;
+                out.println(response);
+
+                if ("exit".equalsIgnoreCase(inputLine.trim())) {
+                    break;
+                }
+                // Pipelined clients: keep answering commands that are already buffered and
+                // write all of their responses with a single flush before the next read can block
+                if (!in.hasLine()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        }
+    }
+
+    // Splits '\n'-terminated UTF-8 lines off the raw socket stream. Unlike BufferedReader.ready(),
+    // hasLine() only answers true when a whole line is buffered, so readLine() will not block
+    private static final class TextLineReader {
+        private final InputStream in;
+        private byte[] buffer = new byte[64 * 1024];
+        private int start;
+        private int end;
+        private int scanned; // no '\n' in buffer[start, scanned)
+
+        TextLineReader(InputStream in) {
+            this.in = in;
+        }
+
+        boolean hasLine() {
+            return newline() >= 0;
+        }
+
+        String readLine() throws IOException {
+            int nl;
+            while ((nl = newline()) < 0) {
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    scanned -= start;
+                    start = 0;
+                }
+                if (end == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int n = in.read(buffer, end, buffer.length - end);
+                if (n < 0) {
+                    if (end == start) {
+                        return null;
+                    }
+                    String last = line(start, end);
+                    start = end = scanned = 0;
+                    return last;
+                }
+                end += n;
+            }
+            String line = line(start, nl);
+            start = scanned = nl + 1;
+            return line;
+        }
+
+        private int newline() {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    scanned = i;
+                    return i;
+                }
+            }
+            scanned = end;
+            return -1;
+        }
+
+        private String line(int from, int to) {
+            if (to > from && buffer[to - 1] == '\r') {
+                to--;
+            }
+            return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+        }
+    }
+
+    // TCP NIO Server code: one acceptor thread plus a small fixed set of selector event loops,
+    // so idle connections cost a registered channel instead of a parked thread
+    private static final int NIO_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final int NIO_BUFFER_SIZE = 64 * 1024;
+    private static final int NIO_MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int NIO_MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+    private static volatile ServerSocketChannel nioServerChannel = null;
+
+    private static void startNioTcpServer() {
+        NioEventLoop[] loops = new NioEventLoop[NIO_EVENT_LOOPS];
+        Thread[] loopThreads = new Thread[NIO_EVENT_LOOPS];
+        try {
+            nioServerChannel = ServerSocketChannel.open();
+            nioServerChannel.socket().setReuseAddress(true);
+            nioServerChannel.socket().bind(new InetSocketAddress(tcpPort), 4096);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop();
+                loopThreads[i] = new Thread(loops[i], "tcp-nio-loop-" + i);
+                loopThreads[i].start();
+            }
+            Log.info("TCP NIO Server started on port " + tcpPort + " with " + loops.length + " event loops");
+
+            int next = 0;
+            while (!shutdownServer) {
+                SocketChannel channel;
+                try {
+                    channel = nioServerChannel.accept(); // blocking accept, the event loops do all the I/O
+                } catch (ClosedChannelException e) {
+                    if (shutdownServer) {
+                        Log.info("Server is shutting down.");
+                        break;
+                    }
+                    throw e;
+                }
+                InetAddress address = channel.socket().getInetAddress();
+                connectLog.log(Log.Level.INFO, () -> "TCP Client connected: " + address);
+                connectionsOpened.increment();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            Log.error("Exception in TCP NIO Server: " + e.getMessage());
+        } finally {
+            try {
+                if (nioServerChannel != null && nioServerChannel.isOpen()) {
+                    nioServerChannel.close();
+                    Log.info("TCP NIO Server socket closed.");
+                }
+            } catch (IOException e) {
+                Log.warn("Error closing server socket: " + e.getMessage());
+            }
+
+            shutdownServer = true;
+            for (int i = 0; i < loops.length; i++) {
+                if (loops[i] == null) {
+                    continue;
+                }
+                loops[i].wakeup();
+                try {
+                    loopThreads[i].join(TimeUnit.SECONDS.toMillis(60));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Per-connection state. Buffers are only allocated while a connection holds a partial
+    // line or unsent output, everything else goes through the event loop's shared buffers.
+    private static class NioConnection {
+        private final SocketChannel channel;
+        private final String client;
+        private byte[] inbound;
+        private int inboundLength;
+        private ByteBuffer outbound;
+        private boolean closeAfterFlush;
+        private boolean negotiated;
+        private BinarySession binary;
+
+        NioConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.client = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        void stash(byte[] data, int from, int to) {
+            int length = to - from;
+            if (data == inbound) {
+                System.arraycopy(inbound, from, inbound, 0, length);
+                inboundLength = length;
+            } else if (length > 0) {
+                if (inbound == null || inbound.length < inboundLength + length) {
+                    inbound = Arrays.copyOf(inbound == null ? new byte[0] : inbound,
+                            Math.max(inboundLength + length, 2 * inboundLength));
+                }
+                System.arraycopy(data, from, inbound, inboundLength, length);
+                inboundLength += length;
+            }
+            if (inboundLength == 0) {
+                inbound = null; // release the buffer once idle
+            }
+        }
+
+        boolean backlogged() {
+            return outbound != null && outbound.remaining() > NIO_MAX_PENDING_OUTPUT;
+        }
+    }
+
+    private static class NioEventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(NIO_BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocate(NIO_BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        NioEventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdownServer) {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                onWritable(key, conn);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                onReadable(key, conn);
+                            }
+                        } catch (IOException e) {
+                            clientErrorLog.log(Log.Level.WARN, () -> "Exception with client communication: " + e.getMessage());
+                            close(key, conn);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("Exception in TCP NIO event loop: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    close(key, (NioConnection) key.attachment());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    Log.warn("Error closing selector: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new NioConnection(channel));
+                } catch (IOException e) {
+                    clientErrorLog.log(Log.Level.WARN, () -> "Error registering client channel: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void onReadable(SelectionKey key, NioConnection conn) throws IOException {
+            readBuffer.clear();
+            int n = conn.channel.read(readBuffer);
+            if (n < 0) {
+                close(key, conn);
+                return;
+            }
+            if (!conn.negotiated && readBuffer.position() > 0) {
+                conn.negotiated = true;
+                if (readBuffer.get(0) == BINARY_MAGIC) {
+                    conn.binary = new BinarySession("tcp-nio", conn.client, NIO_BUFFER_SIZE, Integer.MAX_VALUE);
+                    appendBinaryInput(conn, 1);
+                    processBinary(key, conn);
+                    return;
+                }
+            }
+            if (conn.binary != null) {
+                appendBinaryInput(conn, 0);
+                processBinary(key, conn);
+                return;
+            }
+            if (conn.inboundLength == 0) {
+                // Fast path: frame lines straight out of the shared read buffer
+                int consumed = processLines(key, conn, readBuffer.array(), 0, readBuffer.position());
+                conn.stash(readBuffer.array(), consumed, readBuffer.position());
+            } else {
+                conn.stash(readBuffer.array(), 0, readBuffer.position());
+                int consumed = processLines(key, conn, conn.inbound, 0, conn.inboundLength);
+                conn.stash(conn.inbound, consumed, conn.inboundLength);
+            }
+            if (conn.inboundLength > NIO_MAX_LINE_LENGTH && !conn.backlogged()) {
+                writeResponse(conn, "ERROR: Line too long.");
+                conn.closeAfterFlush = true;
+            }
+            flush(key, conn);
+        }
+
+        private void onWritable(SelectionKey key, NioConnection conn) throws IOException {
+            conn.channel.write(conn.outbound);
+            if (conn.outbound.hasRemaining()) {
+                return;
+            }
+            conn.outbound = null;
+            if (conn.closeAfterFlush) {
+                close(key, conn);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (conn.binary != null) {
+                processBinary(key, conn);
+            } else if (conn.inboundLength > 0) {
+                // Resume commands that were held back while the client was not reading
+                int consumed = processLines(key, conn, conn.inbound, 0, conn.inboundLength);
+                conn.stash(conn.inbound, consumed, conn.inboundLength);
+                flush(key, conn);
+            }
+        }
+
+        private void appendBinaryInput(NioConnection conn, int from) {
+            conn.binary.append(readBuffer.array(), from, readBuffer.position() - from);
+        }
+
+        private void processBinary(SelectionKey key, NioConnection conn) throws IOException {
+            boolean outputFull;
+            do {
+                outputFull = conn.binary.process(NIO_MAX_PENDING_OUTPUT);
+                ByteBuffer output = conn.binary.output();
+                output.flip();
+                writeOrSpill(conn, output);
+                output.clear();
+            } while (outputFull && conn.outbound == null);
+            conn.closeAfterFlush |= conn.binary.exitRequested;
+            flush(key, conn);
+        }
+
+        // Runs every complete line in data[from, to) and returns the index of the first unconsumed byte
+        private int processLines(SelectionKey key, NioConnection conn, byte[] data, int from, int to) throws IOException {
+            int lineStart = from;
+            for (int i = from; i < to && !conn.closeAfterFlush && !conn.backlogged(); i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                int lineEnd = (i > lineStart && data[i - 1] == '\r') ? i - 1 : i;
+                String inputLine = new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+                lineStart = i + 1;
+
+                writeResponse(conn, admit(conn.client) ? processCommand(inputLine, "tcp-nio") : RATE_LIMITED_ERROR);
+                if ("exit".equalsIgnoreCase(inputLine.trim())) {
+                    conn.closeAfterFlush = true;
+                }
+            }
+            return lineStart;
+        }
+
+        private void writeResponse(NioConnection conn, String response) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(response);
+            encoder.reset();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, writeBuffer, true);
+                if (result.isOverflow()) {
+                    drainWriteBuffer(conn);
+                }
+            } while (!result.isUnderflow());
+            while (encoder.flush(writeBuffer).isOverflow()) {
+                drainWriteBuffer(conn);
+            }
+            if (!writeBuffer.hasRemaining()) {
+                drainWriteBuffer(conn);
+            }
+            writeBuffer.put((byte) '\n');
+        }
+
+        // Moves encoded responses from the shared write buffer to the socket
+        private void drainWriteBuffer(NioConnection conn) throws IOException {
+            writeBuffer.flip();
+            writeOrSpill(conn, writeBuffer);
+            writeBuffer.clear();
+        }
+
+        // Writes src to the socket, spilling whatever the socket does not accept into the
+        // connection's own outbound buffer
+        private void writeOrSpill(NioConnection conn, ByteBuffer src) throws IOException {
+            if (conn.outbound == null) {
+                conn.channel.write(src);
+            }
+            if (src.hasRemaining()) {
+                if (conn.outbound == null) {
+                    conn.outbound = ByteBuffer.allocate(Math.max(src.remaining(), 1024));
+                } else {
+                    conn.outbound.compact();
+                }
+                if (conn.outbound.remaining() < src.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(conn.outbound.position() + src.remaining(), 2 * conn.outbound.capacity()));
+                    conn.outbound.flip();
+                    grown.put(conn.outbound);
+                    conn.outbound = grown;
+                }
+                conn.outbound.put(src);
+                conn.outbound.flip();
+            }
+        }
+
+        private void flush(SelectionKey key, NioConnection conn) throws IOException {
+            if (writeBuffer.position() > 0) {
+                drainWriteBuffer(conn);
+            }
+            if (conn.outbound != null) {
+                // Stop reading until the client catches up with its responses
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (conn.closeAfterFlush) {
+                close(key, conn);
+            }
+        }
+
+        private void close(SelectionKey key, NioConnection conn) {
+            key.cancel();
+            try {
+                if (conn.channel.isOpen()) {
+                    conn.channel.close();
+                    connectionsClosed.increment();
+                    disconnectLog.log(Log.Level.INFO, () -> "Client socket closed.");
+                }
+            } catch (IOException e) {
+                clientErrorLog.log(Log.Level.WARN, () -> "Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
+
+    // Binary protocol: a connection (TCP) or datagram (UDP) whose first byte is BINARY_MAGIC carries
+    // length-prefixed frames instead of text lines. Big-endian layout:
+    //   request  [opcode:1][key length:4][value length:4][key][value]
+    //   response [status:1][value length:4][value]
+    // Keys and values are arbitrary bytes, mapped to the engine's Strings by decodeBinary and back
+    // by encodeBinary: valid UTF-8 reads as the same text the other transports see, and any byte
+    // sequence round-trips exactly. OP_TEXT runs the UTF-8 text command held in the value.
+    private static final byte BINARY_MAGIC = (byte) 0xB1; // never the first byte of a UTF-8 text command
+    private static final byte OP_GET = 1;
+    private static final byte OP_PUT = 2;
+    private static final byte OP_DEL = 3;
+    private static final byte OP_TEXT = 4;
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_NOT_FOUND = 1;
+    private static final byte STATUS_ERROR = 2;
+    private static final int BINARY_HEADER_LENGTH = 9;
+    private static final int BINARY_MAX_FRAME = 64 * 1024 * 1024;
+
+    // Binary bytes <-> engine Strings. Valid UTF-8 decodes as usual. Every byte that is not part of
+    // a valid sequence becomes the code point BINARY_ESCAPE + byte (0x80-0xFF, plane 16 private
+    // use); a valid sequence that encodes one of those code points is escaped byte by byte too, so
+    // the mapping is one-to-one. The Strings hold only proper code points, so they also survive the
+    // UTF-8 used by the WAL, snapshots, replication and the byte-based engines.
+    private static final int BINARY_ESCAPE = 0x10FF00;
+
+    // Decodes into chars (at least 2 * length long) and returns the number of chars written
+    static int decodeBinary(byte[] data, int offset, int length, char[] chars) {
+        int end = offset + length;
+        int n = 0;
+        int i = offset;
+        while (i < end) {
+            int b = data[i] & 0xFF;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+                i++;
+                continue;
+            }
+            int extra = b >= 0xC2 && b <= 0xDF ? 1 : b >= 0xE0 && b <= 0xEF ? 2 : b >= 0xF0 && b <= 0xF4 ? 3 : 0;
+            int codePoint = extra == 1 ? b & 0x1F : extra == 2 ? b & 0x0F : b & 0x07;
+            boolean valid = extra > 0 && i + extra < end;
+            for (int k = 1; valid && k <= extra; k++) {
+                int next = data[i + k] & 0xFF;
+                valid = (next & 0xC0) == 0x80;
+                codePoint = codePoint << 6 | (next & 0x3F);
+            }
+            int minimum = extra == 1 ? 0x80 : extra == 2 ? 0x800 : 0x10000;
+            if (valid && codePoint >= minimum && codePoint <= 0x10FFFF && (codePoint < 0xD800 || codePoint > 0xDFFF)
+                    && (codePoint < BINARY_ESCAPE + 0x80 || codePoint > BINARY_ESCAPE + 0xFF)) {
+                n += Character.toChars(codePoint, chars, n);
+                i += 1 + extra;
+            } else {
+                n += Character.toChars(BINARY_ESCAPE + b, chars, n);
+                i++;
+            }
+        }
+        return n;
+    }
+
+    // Number of bytes encodeBinary writes for value
+    static int binaryLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                length += codePoint >= BINARY_ESCAPE + 0x80 && codePoint <= BINARY_ESCAPE + 0xFF ? 1 : 4;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3; // an unpaired surrogate becomes '?', as in getBytes
+            }
+        }
+        return length;
+    }
+
+    static void encodeBinary(String value, ByteBuffer out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                if (codePoint >= BINARY_ESCAPE + 0x80 && codePoint <= BINARY_ESCAPE + 0xFF) {
+                    out.put((byte) (codePoint - BINARY_ESCAPE));
+                } else {
+                    out.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                            .put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+                }
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    static byte[] binaryBytes(String value) {
+        byte[] bytes = new byte[binaryLength(value)];
+        encodeBinary(value, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    private static void handleBinaryClient(InputStream in, OutputStream out, String client) throws IOException {
+        BinarySession session = new BinarySession("tcp", client, NIO_BUFFER_SIZE, Integer.MAX_VALUE);
+        while (!session.exitRequested) {
+            ByteBuffer input = session.inputBuffer();
+            int n = in.read(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            if (n < 0) {
+                break;
+            }
+            input.position(input.position() + n);
+            session.process(NIO_BUFFER_SIZE);
+            // Same pipelining rule as the text protocol: flush once the client has nothing more buffered
+            while (session.output().position() > 0 && (in.available() == 0 || session.output().position() >= NIO_BUFFER_SIZE || session.exitRequested)) {
+                ByteBuffer output = session.output();
+                out.write(output.array(), output.arrayOffset(), output.position());
+                out.flush();
+                output.clear();
+                session.process(NIO_BUFFER_SIZE); // frames held back while the output was full
+            }
+        }
+    }
+
+    // Parses frames straight out of a heap ByteBuffer; the only objects created per request
+    // are the key and value Strings the engine needs.
+    private static final class BinarySession {
+        private ByteBuffer in;
+        private ByteBuffer out = ByteBuffer.allocate(1024);
+        private final String transport;
+        private final String client;
+        private final int maxOutput;
+        private char[] chars = new char[256];
+        private int pendingFrameLength;
+        private boolean exitRequested;
+
+        BinarySession(String transport, String client, int inputCapacity, int maxOutput) {
+            this.transport = transport;
+            this.client = client;
+            this.in = ByteBuffer.allocate(inputCapacity);
+            this.maxOutput = maxOutput;
+        }
+
+        // Buffer (in write mode) to read more request bytes into
+        ByteBuffer inputBuffer() {
+            if (!in.hasRemaining() || in.capacity() < pendingFrameLength) {
+                in = grow(in, Math.max(in.capacity() * 2, pendingFrameLength));
+            }
+            return in;
+        }
+
+        // Responses so far, in write mode; callers send [0, position) and clear it
+        ByteBuffer output() {
+            return out;
+        }
+
+        void append(byte[] data, int offset, int length) {
+            if (in.remaining() < length) {
+                in = grow(in, Math.max(in.position() + length, 2 * in.capacity()));
+            }
+            in.put(data, offset, length);
+        }
+
+        // Runs complete frames until the input runs out or the output holds outputLimit bytes.
+        // Returns true if it stopped because the output is full.
+        boolean process(int outputLimit) throws IOException {
+            in.flip();
+            try {
+                while (!exitRequested && processFrame()) {
+                    if (out.position() >= outputLimit) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                in.compact();
+            }
+        }
+
+        private boolean processFrame() throws IOException {
+            int start = in.position();
+            if (in.remaining() < BINARY_HEADER_LENGTH) {
+                return false;
+            }
+            byte opcode = in.get(start);
+            int keyLength = in.getInt(start + 1);
+            int valueLength = in.getInt(start + 5);
+            if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength > BINARY_MAX_FRAME) {
+                throw new IOException("Malformed binary frame");
+            }
+            int frameLength = BINARY_HEADER_LENGTH + keyLength + valueLength;
+            if (in.remaining() < frameLength) {
+                pendingFrameLength = frameLength; // inputBuffer() makes room for the rest of a large frame
+                return false;
+            }
+
+            byte[] data = in.array();
+            int keyOffset = in.arrayOffset() + start + BINARY_HEADER_LENGTH;
+            int valueOffset = keyOffset + keyLength;
+            long started = System.nanoTime();
+            String key = decodeBinary(data, keyOffset, keyLength);
+            if (!admit(client)) {
+                writeResponse(STATUS_ERROR, RATE_LIMITED_ERROR);
+                in.position(start + frameLength);
+                return true;
+            }
+            switch (opcode) {
+                case OP_GET: {
+                    countCommand("get");
+                    String value = lookup(key);
+                    if (value == null) {
+                        writeResponse(STATUS_NOT_FOUND, "");
+                    } else {
+                        writeResponse(STATUS_OK, value);
+                    }
+                    recordLatency(transport, "get", System.nanoTime() - started);
+                    break;
+                }
+                case OP_PUT:
+                    countCommand("put");
+                    if (readOnlyError("put") != null) {
+                        writeResponse(STATUS_ERROR, readOnlyError("put"));
+                        break;
+                    }
+                    engine.put(key, decodeBinary(data, valueOffset, valueLength));
+                    writeResponse(STATUS_OK, "");
+                    recordLatency(transport, "put", System.nanoTime() - started);
+                    break;
+                case OP_DEL:
+                    countCommand("del");
+                    if (readOnlyError("del") != null) {
+                        writeResponse(STATUS_ERROR, readOnlyError("del"));
+                        break;
+                    }
+                    writeResponse(engine.remove(key) != null ? STATUS_OK : STATUS_NOT_FOUND, "");
+                    recordLatency(transport, "del", System.nanoTime() - started);
+                    break;
+                case OP_TEXT: {
+                    String command = new String(data, valueOffset, valueLength, StandardCharsets.UTF_8);
+                    writeResponse(STATUS_OK, processCommand(command, transport));
+                    exitRequested = "exit".equalsIgnoreCase(command.trim());
+                    break;
+                }
+                default:
+                    writeResponse(STATUS_ERROR, "ERROR: Unknown opcode " + opcode);
+            }
+            in.position(start + frameLength);
+            return true;
+        }
+
+        // Decodes straight out of the frame into a reused char buffer, so the String the engine
+        // keeps is the only allocation
+        private String decodeBinary(byte[] data, int offset, int length) {
+            if (chars.length < 2 * length) {
+                chars = new char[Math.max(2 * length, 2 * chars.length)];
+            }
+            return new String(chars, 0, KeyValueStore.decodeBinary(data, offset, length, chars));
+        }
+
+        // Encodes the value straight into the output buffer, with no intermediate byte[]
+        private void writeResponse(byte status, String value) {
+            int length = binaryLength(value);
+            if (reserve(status, 5 + length)) {
+                out.put(status).putInt(length);
+                encodeBinary(value, out);
+            }
+        }
+
+        // Makes room for a response, or writes a short error in its place if it can never fit
+        private boolean reserve(byte status, int length) {
+            if (reserve(length)) {
+                return true;
+            }
+            if (status != STATUS_ERROR) {
+                writeResponse(STATUS_ERROR, "ERROR: Response too large.");
+            }
+            return false;
+        }
+
+        private boolean reserve(int length) {
+            if (out.position() + length > maxOutput) {
+                return false;
+            }
+            if (out.remaining() < length) {
+                out = grow(out, Math.min(maxOutput, Math.max(out.position() + length, 2 * out.capacity())));
+            }
+            return true;
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            return grown;
+        }
+    }
+
+    // Blocking client for the binary protocol over TCP
+    public static class BinaryClient implements Closeable {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        public BinaryClient(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeByte(BINARY_MAGIC);
+        }
+
+        // Returns null when the key does not exist
+        public synchronized byte[] get(byte[] key) throws IOException {
+            return call(OP_GET, key, new byte[0]);
+        }
+
+        public synchronized boolean put(byte[] key, byte[] value) throws IOException {
+            return call(OP_PUT, key, value) != null;
+        }
+
+        public synchronized boolean del(byte[] key) throws IOException {
+            return call(OP_DEL, key, new byte[0]) != null;
+        }
+
+        // Any text protocol command, e.g. "incr counter 1"
+        public synchronized String command(String command) throws IOException {
+            byte[] reply = call(OP_TEXT, new byte[0], command.getBytes(StandardCharsets.UTF_8));
+            char[] chars = new char[2 * reply.length];
+            return new String(chars, 0, decodeBinary(reply, 0, reply.length, chars));
+        }
+
+        private byte[] call(byte opcode, byte[] key, byte[] value) throws IOException {
+            out.writeByte(opcode);
+            out.writeInt(key.length);
+            out.writeInt(value.length);
+            out.write(key);
+            out.write(value);
+            out.flush();
+
+            byte status = in.readByte();
+            byte[] response = new byte[in.readInt()];
+            in.readFully(response);
+            if (status == STATUS_ERROR) {
+                throw new IOException(new String(response, StandardCharsets.UTF_8));
+            }
+            return status == STATUS_OK ? response : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // TCP Client code
+    private static void startTcpClient() {
+    	int port = tcpPort;
+        Socket s;
+		try {
+			s = new Socket("localhost", port);
+			
+			//Logic
+			clientProcess(s);
+		}catch (UnknownHostException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println("Could not connect to the TCP server. Please ensure the TCP server is running.");
+			e.printStackTrace();
+		}
+    }
+
+    public static void clientProcess(Socket sktserver) {
+    	PrintWriter pr;
+    	BufferedReader in;
+    	long startTime = System.nanoTime();;
+    	String[] command = {};
+		try {
+			pr = new PrintWriter(new OutputStreamWriter(sktserver.getOutputStream(), StandardCharsets.UTF_8), true);
+			in = new BufferedReader(new InputStreamReader(sktserver.getInputStream(), StandardCharsets.UTF_8));
+			
+			//logic
+	        
+	        do {
+	        	command = getClientCommand();
+	        	pr.println(String.join(" ", command));
+
+	            if ("exit".equals(command[0])) {
+	                //System.out.println("Exit command sent. Closing client socket."); // Debug line
+	                break; // Exit the loop before waiting for server's response
+	            }
+	            // Read server response if expected
+	            String response = in.readLine();
+	            System.out.println("Server says: " + response);
+	            
+	        }while (!"exit".equals(command[0]));
+	        System.out.println("Exiting client process."); // Debug line
+		} catch (IOException e) {
+			System.out.println("Exception in client process: " + e.getMessage()); // Debug line
+	        e.printStackTrace();
+		}finally {
+			
+			long endTime = System.nanoTime();
+            long duration = (endTime - startTime)/1_000_000; // milliseconds
+            System.out.println("Operation '" + command[0] + "' executed in " + duration + " ms");
+            
+	        try {
+	            if (sktserver != null && !sktserver.isClosed()) {
+	                sktserver.close(); // Ensure the socket is closed
+	                System.out.println("Client socket closed."); // Debug line
+	            }
+	        } catch (IOException e) {
+	            System.out.println("Exception while closing client socket: " + e.getMessage()); // Debug line
+	            e.printStackTrace();
+	        }
+	    }
+    }
+
+    // Pipelining TCP client: many commands can be in flight on one socket. Responses come back
+    // in request order, so a FIFO of pending futures is enough to match them up.
+    public static class PipelinedTcpClient implements Closeable {
+        private final Socket socket;
+        private final Writer out;
+        private final BufferedReader in;
+        private final Queue<CompletableFuture<String>> inFlight = new ConcurrentLinkedQueue<CompletableFuture<String>>();
+        private final Semaphore window;
+        private final Thread reader;
+
+        public PipelinedTcpClient(String host, int port, int maxInFlight) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 64 * 1024);
+            window = new Semaphore(maxInFlight);
+            reader = new Thread(this::readResponses, "tcp-pipeline-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // Queues a command without flushing it; call flush() (or use request/pipeline) to send
+        public CompletableFuture<String> send(String command) throws IOException {
+            if (!window.tryAcquire()) {
+                flush(); // the responses that free the window only come back once buffered commands are sent
+                window.acquireUninterruptibly();
+            }
+            CompletableFuture<String> response = new CompletableFuture<String>();
+            synchronized (this) {
+                if (socket.isClosed()) {
+                    window.release();
+                    throw new IOException("Connection closed");
+                }
+                inFlight.add(response);
+                out.write(command);
+                out.write('\n');
+            }
+            return response;
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        public CompletableFuture<String> request(String command) throws IOException {
+            CompletableFuture<String> response = send(command);
+            flush();
+            return response;
+        }
+
+        // Sends all commands in one write and waits for every response
+        public List<String> pipeline(List<String> commands) throws IOException {
+            List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>(commands.size());
+            for (String command : commands) {
+                responses.add(send(command));
+            }
+            flush();
+            List<String> results = new ArrayList<String>(responses.size());
+            try {
+                for (CompletableFuture<String> response : responses) {
+                    results.add(response.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for responses");
+            } catch (ExecutionException e) {
+                throw new IOException("Pipelined request failed", e.getCause());
+            }
+            return results;
+        }
+
+        private void readResponses() {
+            IOException failure = new EOFException("Connection closed by server");
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    CompletableFuture<String> response = inFlight.poll();
+                    if (response == null) {
+                        continue; // unsolicited line, nothing is waiting for it
+                    }
+                    window.release();
+                    response.complete(line);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                CompletableFuture<String> response;
+                while ((response = inFlight.poll()) != null) {
+                    window.release();
+                    response.completeExceptionally(failure);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                socket.close();
+            }
+            try {
+                reader.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Client for several independent servers. Keys are placed on a consistent-hash ring with
+    // vnodesPerNode points per node, so adding a node only takes over the key ranges that fall
+    // just before its own points (about 1/N of the keys). Batch commands are split per node and
+    // sent to all nodes at once over pipelined connections. Single-key commands route on their
+    // key; anything else (stats, store, scan, exit, ...) goes to every node.
+    // While addNode moves keys, a command on a key whose owner changed first moves that key from
+    // its old owner, so every read and write of it happens on the new owner. Key commands hold the
+    // migration read lock; a page of the bulk move holds the write lock.
+    public static class ClusterClient implements Closeable {
+        private static final Set<String> KEY_COMMANDS = new HashSet<String>(Arrays.asList(
+                "put", "get", "del", "putifabsent", "cas", "incr", "append", "expire", "ttl"));
+        private static final int MIGRATE_PAGE = 1000;
+
+        private final int vnodesPerNode;
+        private final Map<String, PipelinedTcpClient> connections = new ConcurrentHashMap<String, PipelinedTcpClient>();
+        // Moving keys goes over the binary protocol, whose length-prefixed frames carry any key and value
+        private final Map<String, BinaryClient> binaryConnections = new ConcurrentHashMap<String, BinaryClient>();
+        private volatile TreeMap<Long, String> ring = new TreeMap<Long, String>();
+        private volatile TreeMap<Long, String> previousRing; // set while addNode is moving keys
+        private String pendingNode; // the node addNode is moving keys to, guarded by this
+        private final ReentrantReadWriteLock migration = new ReentrantReadWriteLock();
+        private final Object[] keyLocks = new Object[64];
+
+        // nodes as "host:port" of their TCP servers
+        public ClusterClient(List<String> nodes, int vnodesPerNode) throws IOException {
+            this.vnodesPerNode = vnodesPerNode;
+            for (int i = 0; i < keyLocks.length; i++) {
+                keyLocks[i] = new Object();
+            }
+            TreeMap<Long, String> initial = new TreeMap<Long, String>();
+            for (String node : nodes) {
+                connect(node);
+                addPoints(initial, node);
+            }
+            ring = initial;
+        }
+
+        private void connect(String node) throws IOException {
+            int colon = node.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected host:port, got " + node);
+            }
+            connections.put(node, new PipelinedTcpClient(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)), 1024));
+        }
+
+        // Opened on first use, since only addNode and the keys it has not moved yet need them
+        private BinaryClient binary(String node) throws IOException {
+            BinaryClient client = binaryConnections.get(node);
+            if (client == null) {
+                synchronized (binaryConnections) {
+                    client = binaryConnections.get(node);
+                    if (client == null) {
+                        int colon = node.lastIndexOf(':');
+                        client = new BinaryClient(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+                        binaryConnections.put(node, client);
+                    }
+                }
+            }
+            return client;
+        }
+
+        private void addPoints(TreeMap<Long, String> target, String node) {
+            for (int i = 0; i < vnodesPerNode; i++) {
+                target.put(hash(node + "#" + i), node);
+            }
+        }
+
+        // 64-bit FNV-1a over the UTF-16 units, then MurmurHash3's fmix64 so similar keys spread out
+        static long hash(String s) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            return h ^ (h >>> 33);
+        }
+
+        private static String owner(TreeMap<Long, String> ring, String key) {
+            Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+            return (point != null ? point : ring.firstEntry()).getValue();
+        }
+
+        public String nodeFor(String key) {
+            return owner(ring, key);
+        }
+
+        public Set<String> nodes() {
+            return new HashSet<String>(ring.values());
+        }
+
+        public String get(String key) throws IOException {
+            return execute("get " + key);
+        }
+
+        public String put(String key, String value) throws IOException {
+            return execute("put " + key + " " + value);
+        }
+
+        public String del(String key) throws IOException {
+            return execute("del " + key);
+        }
+
+        // Runs one text command against the cluster and returns the combined response
+        public String execute(String command) throws IOException {
+            String[] parts = command.split(" ");
+            String verb = parts[0].toLowerCase();
+            if (KEY_COMMANDS.contains(verb) && parts.length >= 2) {
+                migration.readLock().lock();
+                try {
+                    String error = moveIfOwnerChanged(parts[1]);
+                    return error != null ? error : await(connections.get(nodeFor(parts[1])).request(command));
+                } finally {
+                    migration.readLock().unlock();
+                }
+            }
+            switch (verb) {
+                case "mget":
+                case "mdel":
+                case "mput":
+                    if (verb.equals("mput") ? parts.length % 2 == 0 : parts.length < 2) {
+                        return "ERROR: Usage: " + verb + (verb.equals("mput") ? " <key> <value> [<key> <value> ...]" : " <key> [<key> ...]");
+                    }
+                    int stride = verb.equals("mput") ? 2 : 1;
+                    migration.readLock().lock();
+                    try {
+                        for (int i = 1; i < parts.length; i += stride) {
+                            String error = moveIfOwnerChanged(parts[i]);
+                            if (error != null) {
+                                return error;
+                            }
+                        }
+                        return splitBatch(verb, parts, stride);
+                    } finally {
+                        migration.readLock().unlock();
+                    }
+                case "addnode":
+                    if (parts.length != 2) {
+                        return "ERROR: Usage: addnode <host:port>";
+                    }
+                    try {
+                        return "OK moved=" + addNode(parts[1]);
+                    } catch (IOException e) {
+                        return "ERROR: Adding " + parts[1] + " stopped: " + e.getMessage() + ". Run addnode " + parts[1] + " again to resume.";
+                    }
+                default:
+                    return broadcast(command);
+            }
+        }
+
+        // Caller holds the migration read lock. Moves key to its new owner if a move is running and
+        // the key's owner changed; returns an error reply if that failed, otherwise null.
+        private String moveIfOwnerChanged(String key) throws IOException {
+            TreeMap<Long, String> previous = previousRing;
+            if (previous == null) {
+                return null;
+            }
+            String source = owner(previous, key);
+            String target = nodeFor(key);
+            if (source.equals(target)) {
+                return null;
+            }
+            synchronized (keyLocks[(int) (hash(key) >>> 58)]) {
+                try {
+                    byte[] keyBytes = binaryBytes(key);
+                    byte[] value = binary(source).get(keyBytes);
+                    if (value == null) {
+                        return null; // already moved, or never existed
+                    }
+                    binary(target).put(keyBytes, value);
+                    binary(source).del(keyBytes);
+                    return null;
+                } catch (IOException e) {
+                    if (e.getMessage() != null && e.getMessage().startsWith("ERROR")) {
+                        return e.getMessage(); // the node refused, e.g. a read-only replica
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        // mput sends each node the pairs it owns in one command. mget and mdel send one get or del per
+        // key, all pipelined, so each reply is a single value that never has to be split back out of
+        // a "key=value; " list; the results come back in the caller's key order.
+        private String splitBatch(String verb, String[] parts, int stride) throws IOException {
+            if (stride == 1) {
+                String single = verb.equals("mget") ? "get " : "del ";
+                List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>(parts.length - 1);
+                for (int i = 1; i < parts.length; i++) {
+                    responses.add(connections.get(nodeFor(parts[i])).request(single + parts[i]));
+                }
+                StringBuilder sb = new StringBuilder();
+                for (int i = 1; i < parts.length; i++) {
+                    String result = await(responses.get(i - 1));
+                    if (result.startsWith("ERROR")) {
+                        return result;
+                    }
+                    sb.append(parts[i]).append("=").append(result).append("; ");
+                }
+                return sb.toString();
+            }
+            Map<String, StringBuilder> perNode = new LinkedHashMap<String, StringBuilder>();
+            for (int i = 1; i < parts.length; i += stride) {
+                StringBuilder sb = perNode.computeIfAbsent(nodeFor(parts[i]), node -> new StringBuilder(verb));
+                for (int j = i; j < i + stride; j++) {
+                    sb.append(' ').append(parts[j]);
+                }
+            }
+            Map<String, CompletableFuture<String>> responses = new LinkedHashMap<String, CompletableFuture<String>>();
+            for (Map.Entry<String, StringBuilder> batch : perNode.entrySet()) {
+                responses.put(batch.getKey(), connections.get(batch.getKey()).request(batch.getValue().toString()));
+            }
+            for (CompletableFuture<String> response : responses.values()) {
+                String result = await(response);
+                if (!"OK".equals(result)) {
+                    return result;
+                }
+            }
+            return "OK";
+        }
+
+        private String broadcast(String command) throws IOException {
+            Map<String, CompletableFuture<String>> responses = new TreeMap<String, CompletableFuture<String>>();
+            for (Map.Entry<String, PipelinedTcpClient> node : connections.entrySet()) {
+                responses.put(node.getKey(), node.getValue().request(command));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, CompletableFuture<String>> response : responses.entrySet()) {
+                sb.append("[").append(response.getKey()).append("] ").append(await(response.getValue())).append(" ");
+            }
+            return sb.toString().trim();
+        }
+
+        // Adds a node and moves over only the keys whose owner changed. The new ring is used right
+        // away; commands on keys that are still on their old owner move them first (see execute).
+        // If a move fails it stops without deleting anything it could not copy, and calling
+        // addNode again for the same node resumes it. Returns the number of keys moved.
+        public synchronized long addNode(String node) throws IOException {
+            if (pendingNode == null) {
+                if (connections.containsKey(node)) {
+                    return 0;
+                }
+                connect(node);
+                TreeMap<Long, String> next = new TreeMap<Long, String>(ring);
+                addPoints(next, node);
+                migration.writeLock().lock();
+                try {
+                    previousRing = ring;
+                    ring = next;
+                    pendingNode = node;
+                } finally {
+                    migration.writeLock().unlock();
+                }
+            } else if (!pendingNode.equals(node)) {
+                throw new IOException("still moving keys to " + pendingNode);
+            }
+            long moved = 0;
+            for (String source : new HashSet<String>(previousRing.values())) {
+                moved += migrate(source, node);
+            }
+            migration.writeLock().lock();
+            try {
+                previousRing = null;
+                pendingNode = null;
+            } finally {
+                migration.writeLock().unlock();
+            }
+            return moved;
+        }
+
+        // Pages through the source's keys with "scan ... keys", whose <length>:<key> framing holds
+        // any key, and moves the ones the target now owns
+        private long migrate(String source, String target) throws IOException {
+            BinaryClient from = binary(source);
+            BinaryClient to = binary(target);
+            long moved = 0;
+            String cursor = "0";
+            do {
+                String page = from.command("scan " + cursor + " " + MIGRATE_PAGE + " keys");
+                if (!page.startsWith("CURSOR:")) {
+                    throw new IOException("Scan of " + source + " failed: " + page);
+                }
+                int space = page.indexOf(' ');
+                cursor = page.substring("CURSOR:".length(), space < 0 ? page.length() : space);
+                List<String> keys = new ArrayList<String>();
+                for (int i = space + 1; space >= 0 && i < page.length(); ) {
+                    int colon = page.indexOf(':', i);
+                    int length = Integer.parseInt(page.substring(i, colon));
+                    String key = page.substring(colon + 1, colon + 1 + length);
+                    if (target.equals(nodeFor(key))) {
+                        keys.add(key);
+                    }
+                    i = colon + 1 + length;
+                }
+                if (!keys.isEmpty()) {
+                    moved += movePage(from, to, keys);
+                }
+            } while (!"0".equals(cursor));
+            return moved;
+        }
+
+        // Copies one page of keys and deletes them from the source only once every copy is
+        // acknowledged. The values are read again under the write lock, since commands may have
+        // moved or changed some of these keys after the scan returned them. Values travel as the
+        // raw bytes of binary frames, so they arrive exactly as stored.
+        private long movePage(BinaryClient from, BinaryClient to, List<String> keys) throws IOException {
+            migration.writeLock().lock();
+            try {
+                List<byte[]> copied = new ArrayList<byte[]>(keys.size());
+                for (String key : keys) {
+                    byte[] keyBytes = binaryBytes(key);
+                    byte[] value = from.get(keyBytes);
+                    if (value != null) {
+                        to.put(keyBytes, value);
+                        copied.add(keyBytes);
+                    }
+                }
+                for (byte[] keyBytes : copied) {
+                    from.del(keyBytes);
+                }
+                return copied.size();
+            } finally {
+                migration.writeLock().unlock();
+            }
+        }
+
+        private static String await(CompletableFuture<String> response) throws IOException {
+            try {
+                return response.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a response");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (PipelinedTcpClient connection : connections.values()) {
+                connection.close();
+            }
+            for (BinaryClient connection : binaryConnections.values()) {
+                connection.close();
+            }
+        }
+    }
+
+    // UDP server: --udp-threads receiver threads (default one per core). They share one channel,
+    // or with --udp-reuseport (where the OS supports SO_REUSEPORT) each thread binds its own
+    // channel to the port and the kernel spreads clients across them. A receiver reuses its own buffers,
+    // runs the command inline and replies on the channel the datagram came in on, so nothing is
+    // shared between threads. --udp-dispatch=pool hands datagrams to the executor instead.
+    private static final List<DatagramChannel> udpChannels = new CopyOnWriteArrayList<DatagramChannel>();
+
+    private static void startUdpServer() {
+        int threads = Integer.parseInt(getOption("udp-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        boolean pooled = "pool".equals(getOption("udp-dispatch", "inline"));
+        try {
+            SocketOption<Boolean> reusePort = null;
+            if (options.containsKey("udp-reuseport")) {
+                reusePort = reusePortOption();
+                if (reusePort == null) {
+                    Log.warn("SO_REUSEPORT is not available here, UDP receivers share one channel.");
+                } else {
+                    // SO_REUSEPORT would also let this server join another process already on the
+                    // port and split its traffic, so first make sure the port is free
+                    try (DatagramChannel probe = DatagramChannel.open()) {
+                        probe.bind(new InetSocketAddress(udpPort));
+                    }
+                }
+            }
+            Thread[] receivers = new Thread[threads];
+            DatagramChannel shared = null;
+            for (int i = 0; i < threads; i++) {
+                DatagramChannel channel;
+                if (reusePort != null) {
+                    channel = openUdpChannel(reusePort);
+                } else {
+                    if (shared == null) {
+                        shared = openUdpChannel(null);
+                    }
+                    channel = shared;
+                }
+                receivers[i] = new Thread(new UdpReceiver(channel, pooled), "udp-receiver-" + i);
+            }
+            Log.info("UDP Server started on port " + udpPort + " with " + threads + " receiver threads ("
+                    + (reusePort != null ? "SO_REUSEPORT" : "shared channel") + ", " + (pooled ? "pool" : "inline") + " dispatch)");
+            for (Thread receiver : receivers) {
+                receiver.start();
+            }
+            for (Thread receiver : receivers) {
+                receiver.join();
+            }
+            Log.info("UDP Server is shutting down.");
+        } catch (IOException e) {
+            Log.error("Exception in UDP Server", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeUdpChannels();
+
+        	//Shutdown ThreadPool
+            threadPool.shutdown(); // Graceful shutdown of the thread pool
+            try {
+                if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                    threadPool.shutdownNow();
+                    Log.warn("Forced shutdown of thread pool executed.");
+                }
+            } catch (InterruptedException ie) {
+                threadPool.shutdownNow();
+            }
+        }
+    }
+
+    private static DatagramChannel openUdpChannel(SocketOption<Boolean> reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort != null) {
+                channel.setOption(reusePort, true);
+            }
+            channel.bind(new InetSocketAddress(udpPort));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        udpChannels.add(channel);
+        return channel;
+    }
+
+    // StandardSocketOptions.SO_REUSEPORT is Java 9+ and not every OS has it, so look it up and probe it
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            return probe.supportedOptions().contains(option) ? option : null;
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    // Closing the channels wakes every receiver blocked in receive()
+    private static void closeUdpChannels() {
+        for (DatagramChannel channel : udpChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing UDP channel: " + e.getMessage());
+            }
+        }
+        udpChannels.clear();
+    }
+
+    private static final class UdpReceiver implements Runnable {
+        private final DatagramChannel channel;
+        private final boolean pooled;
+        private final ByteBuffer request = ByteBuffer.allocate(65535);
+        private final ByteBuffer reply = ByteBuffer.allocate(UDP_MAX_PAYLOAD);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        UdpReceiver(DatagramChannel channel, boolean pooled) {
+            this.channel = channel;
+            this.pooled = pooled;
+        }
+
+        @Override
+        public void run() {
+            while (!shutdownServer) {
+                SocketAddress client;
+                request.clear();
+                try {
+                    client = channel.receive(request);
+                } catch (ClosedChannelException e) {
+                    break; // closed by exit or by the combined server shutting down
+                } catch (IOException e) {
+                    clientErrorLog.log(Log.Level.WARN, () -> "Exception in UDP receive: " + e.getMessage());
+                    continue;
+                }
+                udpDatagrams.increment();
+                if (pooled) {
+                    byte[] data = Arrays.copyOf(request.array(), request.position());
+                    Runnable busy = () -> sendUdpReply(channel, client, ByteBuffer.wrap(udpBusy(data)));
+                    if (!threadPool.trySubmit(new ClientHandler(channel, client, data), busy)) {
+                        busy.run();
+                    }
+                    continue;
+                }
+                reply.clear();
+                byte[] data = request.array();
+                int length = request.position();
+                if (length > 0 && data[0] == BINARY_MAGIC) {
+                    reply.put(processBinaryDatagram(data, length, client));
+                } else {
+                    String received = new String(data, 0, length, StandardCharsets.UTF_8);
+                    String response = processUdpCommand(received, client);
+                    if (response == null) {
+                        continue; // a retransmit of a write that is still running
+                    }
+                    encoder.reset();
+                    if (encoder.encode(CharBuffer.wrap(response), reply, true).isOverflow() || encoder.flush(reply).isOverflow()) {
+                        reply.clear();
+                        reply.put(udpTooLarge(received));
+                    }
+                }
+                reply.flip();
+                sendUdpReply(channel, client, reply);
+            }
+        }
+    }
+
+    private static void sendUdpReply(DatagramChannel channel, SocketAddress client, ByteBuffer reply) {
+        try {
+            if (!shutdownServer) {
+                channel.send(reply, client);
+            }
+        } catch (IOException e) {
+            if (!shutdownServer) {
+                clientErrorLog.log(Log.Level.WARN, () -> "Exception sending UDP reply: " + e.getMessage());
+            }
+        }
+        if (shutdownServer) {
+            closeUdpChannels(); // this datagram was exit, stop the other receivers too
+        }
+    }
+
+    // --udp-dispatch=pool: runs one datagram on the executor, for workloads where commands may block
+    private static class ClientHandler implements Runnable {
+        private final DatagramChannel channel;
+        private final SocketAddress client;
+        private final byte[] data;
+
+        ClientHandler(DatagramChannel channel, SocketAddress client, byte[] data) {
+            this.channel = channel;
+            this.client = client;
+            this.data = data;
+        }
+
+        @Override
+        public void run() {
+            if (shutdownServer) {
+                return;
+            }
+            byte[] sendData;
+            if (data.length > 0 && data[0] == BINARY_MAGIC) {
+                sendData = processBinaryDatagram(data, data.length, client);
+            } else {
+                String received = new String(data, StandardCharsets.UTF_8);
+                //System.out.println("ClientHandler received: " + received); // Debug line
+                String response = processUdpCommand(received, client);
+                if (response == null) {
+                    return; // a retransmit of a write that is still running
+                }
+                sendData = response.getBytes(StandardCharsets.UTF_8);
+                if (sendData.length > UDP_MAX_PAYLOAD) {
+                    sendData = udpTooLarge(received);
+                }
+            }
+            sendUdpReply(channel, client, ByteBuffer.wrap(sendData));
+        }
+    }
+
+    // "#<id> <command>" carries a client request id that is echoed on the reply (see UdpClient).
+    // Write commands with an id are remembered for a while, so a retransmitted put or del whose
+    // reply was lost is answered again from the cache instead of being applied twice. A copy that
+    // arrives while the first is still running gets no reply (null); the client retries it later.
+    private static final UdpDedupCache udpDedup = new UdpDedupCache(4096, TimeUnit.SECONDS.toNanos(30));
+
+    private static String processUdpCommand(String received, SocketAddress client) {
+        if (!received.startsWith("#")) {
+            return admit(clientOf(client)) ? processCommand(received, "udp") : RATE_LIMITED_ERROR;
+        }
+        int space = received.indexOf(' ');
+        long id;
+        try {
+            id = Long.parseLong(received.substring(1, space < 0 ? received.length() : space));
+        } catch (NumberFormatException e) {
+            return "ERROR: Malformed request id.";
+        }
+        if (space < 0 || space == received.length() - 1) {
+            return "#" + id + " ERROR: Missing command after request id.";
+        }
+        String prefix = received.substring(0, space + 1);
+        String command = received.substring(space + 1);
+        int verbEnd = command.indexOf(' ');
+        String verb = (verbEnd < 0 ? command : command.substring(0, verbEnd)).toLowerCase();
+        if (!WRITE_COMMANDS.contains(verb)) {
+            return prefix + (admit(clientOf(client)) ? processCommand(command, "udp") : RATE_LIMITED_ERROR);
+        }
+        // a retransmit is answered from the cache before the rate limit, it costs no new work
+        UdpDedupCache.Entry earlier = udpDedup.claim(client, id);
+        if (earlier != null) {
+            udpDuplicates.increment();
+            return earlier.response == null ? null : prefix + earlier.response;
+        }
+        if (!admit(clientOf(client))) {
+            udpDedup.release(client, id); // it did not run, so a retry may run it
+            return prefix + RATE_LIMITED_ERROR;
+        }
+        String response = processCommand(command, "udp");
+        udpDedup.complete(client, id, response);
+        return prefix + response;
+    }
+
+    // The reply that replaces one too large to send, keeping the request id so the client can match it
+    private static byte[] udpTooLarge(String received) {
+        return udpError(received, "ERROR: Response too large for a datagram.");
+    }
+
+    private static byte[] udpError(String received, String error) {
+        int space = received.indexOf(' ');
+        String prefix = received.startsWith("#") && space > 0 ? received.substring(0, space + 1) : "";
+        return (prefix + error).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // The reply to a datagram the executor had no room for, in the request's own protocol
+    private static byte[] udpBusy(byte[] data) {
+        if (data.length > 0 && data[0] == BINARY_MAGIC) {
+            byte[] message = BUSY_ERROR.getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(6 + message.length).put(BINARY_MAGIC).put(STATUS_ERROR).putInt(message.length).put(message).array();
+        }
+        return udpError(new String(data, StandardCharsets.UTF_8), BUSY_ERROR);
+    }
+
+    // Direct-mapped cache of recent write replies keyed by (client address, request id). A newer
+    // request that hashes to the same slot simply evicts the old one, so it never grows or locks.
+    // A request claims its slot with a CAS before running, so only one copy of it ever runs.
+    private static final class UdpDedupCache {
+        private final AtomicReferenceArray<Entry> slots;
+        private final long ttlNanos;
+
+        private static final class Entry {
+            final SocketAddress client;
+            final long id;
+            final String response; // null while the request is still running
+            final long expiresAt;
+
+            Entry(SocketAddress client, long id, String response, long expiresAt) {
+                this.client = client;
+                this.id = id;
+                this.response = response;
+                this.expiresAt = expiresAt;
+            }
+
+            boolean matches(SocketAddress client, long id, long now) {
+                return this.id == id && this.client.equals(client) && now - expiresAt < 0;
+            }
+        }
+
+        UdpDedupCache(int size, long ttlNanos) {
+            this.slots = new AtomicReferenceArray<Entry>(Integer.highestOneBit(size));
+            this.ttlNanos = ttlNanos;
+        }
+
+        private int slot(SocketAddress client, long id) {
+            int hash = client.hashCode() * 31 + Long.hashCode(id);
+            return (hash ^ (hash >>> 16)) & (slots.length() - 1);
+        }
+
+        // Returns the live entry for (client, id) if there is one. Otherwise installs an in-flight
+        // marker and returns null: the caller now owns the request and must call complete.
+        Entry claim(SocketAddress client, long id) {
+            int slot = slot(client, id);
+            while (true) {
+                Entry entry = slots.get(slot);
+                long now = System.nanoTime();
+                if (entry != null && entry.matches(client, id, now)) {
+                    return entry;
+                }
+                if (slots.compareAndSet(slot, entry, new Entry(client, id, null, now + ttlNanos))) {
+                    return null;
+                }
+            }
+        }
+
+        void complete(SocketAddress client, long id, String response) {
+            replaceMarker(client, id, new Entry(client, id, response, System.nanoTime() + ttlNanos));
+        }
+
+        void release(SocketAddress client, long id) {
+            replaceMarker(client, id, null);
+        }
+
+        private void replaceMarker(SocketAddress client, long id, Entry replacement) {
+            int slot = slot(client, id);
+            Entry marker = slots.get(slot);
+            // if a colliding request evicted the marker meanwhile, there is nothing to replace
+            if (marker != null && marker.response == null && marker.matches(client, id, System.nanoTime())) {
+                slots.compareAndSet(slot, marker, replacement);
+            }
+        }
+    }
+
+    // A binary datagram holds BINARY_MAGIC followed by exactly one frame; the reply is BINARY_MAGIC plus one response frame
+    private static byte[] processBinaryDatagram(byte[] data, int length, SocketAddress client) {
+        BinarySession session = new BinarySession("udp", clientOf(client), length - 1, UDP_MAX_PAYLOAD - 1);
+        session.append(data, 1, length - 1);
+        try {
+            session.process(Integer.MAX_VALUE);
+            if (session.output().position() == 0) {
+                session.writeResponse(STATUS_ERROR, "ERROR: Incomplete binary frame.");
+            }
+        } catch (IOException e) {
+            session.writeResponse(STATUS_ERROR, "ERROR: " + e.getMessage());
+        }
+        ByteBuffer output = session.output();
+        byte[] reply = new byte[1 + output.position()];
+        reply[0] = BINARY_MAGIC;
+        System.arraycopy(output.array(), output.arrayOffset(), reply, 1, output.position());
+        return reply;
+    }
+
+    private static void startUdpClient() {
+        long startTime = System.nanoTime(); //perf
+
+        try (UdpClient client = new UdpClient("localhost", udpPort, 256, 6)) {
+            while (true) {
+            	String[] commandParts = getClientCommand();
+
+            	String command = String.join(" ", commandParts);
+                //System.out.println("Client sending command: " + command); // Debug line
+
+                if (command.trim().isEmpty()) {
+                    System.out.println("Invalid command format"); // Debug line
+                    continue;
+                }
+                if ("exit".equals(command)) {
+                    client.send(command); // the server shuts down without replying
+                	System.out.println("startUdpClient-break stmt on exit");// Debug line
+                	break;
+                }
+                try {
+                    String response = isBatchCommand(commandParts[0]) ? sendBatchCommand(client, commandParts) : client.request(command);
+                    System.out.println("Server says: " + response);
+                } catch (SocketTimeoutException e) {
+                    System.out.println("No reply from the UDP server: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+        	long endTime = System.nanoTime();
+            long duration = (endTime - startTime)/1_000_000; // Convert to milliseconds
+            System.out.println("UDP Operation executed in " + duration + " ms");
+        }
+    }
+
+    // UDP client that keeps many requests in flight on one socket. Each command goes out as
+    // "#<id> <command>" and the server echoes the id on its reply, so replies can arrive in any
+    // order. Requests with no reply are retransmitted after an adaptive timeout (RFC 6298: smoothed
+    // RTT plus four deviations, doubled on every retry, never sampled from a retransmitted request).
+    public static class UdpClient implements Closeable {
+        private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+        private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+        private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+        private final DatagramSocket socket;
+        private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<Long, Pending>();
+        private final AtomicLong nextId = new AtomicLong();
+        private final Semaphore window;
+        private final int maxAttempts;
+        private final ScheduledThreadPoolExecutor timer;
+        private final Thread receiver;
+        private double smoothedRtt = -1;
+        private double rttVariance;
+        private long rto = INITIAL_RTO_NANOS;
+
+        private static final class Pending {
+            final long id;
+            final byte[] datagram;
+            final CompletableFuture<String> response = new CompletableFuture<String>();
+            int attempts;
+            long sentAt;
+            ScheduledFuture<?> timeout;
+
+            Pending(long id, byte[] datagram) {
+                this.id = id;
+                this.datagram = datagram;
+            }
+        }
+
+        public UdpClient(String host, int port, int maxInFlight, int maxAttempts) throws IOException {
+            socket = new DatagramSocket();
+            socket.connect(InetAddress.getByName(host), port);
+            window = new Semaphore(maxInFlight);
+            this.maxAttempts = maxAttempts;
+            timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "udp-client-retransmit");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            receiver = new Thread(this::receiveResponses, "udp-client-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        public CompletableFuture<String> send(String command) throws IOException {
+            long id = nextId.incrementAndGet();
+            Pending request = new Pending(id, ("#" + id + " " + command).getBytes(StandardCharsets.UTF_8));
+            if (request.datagram.length > UDP_MAX_PAYLOAD) {
+                throw new IOException("Command too large for a datagram");
+            }
+            window.acquireUninterruptibly();
+            if (socket.isClosed()) {
+                window.release();
+                throw new IOException("Client closed");
+            }
+            pending.put(id, request);
+            transmit(request);
+            return request.response;
+        }
+
+        public String request(String command) throws IOException {
+            try {
+                return send(command).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a reply");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+        private void transmit(Pending request) {
+            synchronized (request) {
+                request.attempts++;
+                request.sentAt = System.nanoTime();
+                request.timeout = timer.schedule(() -> onTimeout(request), currentRto(), TimeUnit.NANOSECONDS);
+            }
+            try {
+                socket.send(new DatagramPacket(request.datagram, request.datagram.length));
+            } catch (IOException e) {
+                fail(request, e);
+            }
+        }
+
+        private void onTimeout(Pending request) {
+            if (pending.get(request.id) != request) {
+                return; // answered meanwhile
+            }
+            synchronized (request) {
+                if (request.attempts >= maxAttempts) {
+                    fail(request, new SocketTimeoutException("No reply after " + request.attempts + " attempts"));
+                    return;
+                }
+            }
+            backOff();
+            transmit(request);
+        }
+
+        private void receiveResponses() {
+            byte[] buffer = new byte[65535];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                } catch (IOException e) {
+                    break;
+                }
+                long now = System.nanoTime();
+                String reply = new String(buffer, 0, packet.getLength(), StandardCharsets.UTF_8);
+                int space = reply.indexOf(' ');
+                Pending request;
+                try {
+                    request = reply.startsWith("#") && space > 0 ? pending.remove(Long.parseLong(reply.substring(1, space))) : null;
+                } catch (NumberFormatException e) {
+                    request = null;
+                }
+                if (request == null) {
+                    continue; // a duplicate reply to a retransmitted request, or not ours
+                }
+                synchronized (request) {
+                    request.timeout.cancel(false);
+                    if (request.attempts == 1) {
+                        sampleRtt(now - request.sentAt);
+                    }
+                }
+                window.release();
+                request.response.complete(reply.substring(space + 1));
+            }
+            IOException closed = new IOException("Client closed");
+            for (Pending request : pending.values()) {
+                fail(request, closed);
+            }
+        }
+
+        private void fail(Pending request, IOException failure) {
+            if (pending.remove(request.id, request)) {
+                synchronized (request) {
+                    request.timeout.cancel(false);
+                }
+                window.release();
+                request.response.completeExceptionally(failure);
+            }
+        }
+
+        private synchronized long currentRto() {
+            return rto;
+        }
+
+        private synchronized void sampleRtt(long rtt) {
+            if (smoothedRtt < 0) {
+                smoothedRtt = rtt;
+                rttVariance = rtt / 2.0;
+            } else {
+                rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rtt);
+                smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+            }
+            rto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, (long) (smoothedRtt + 4 * rttVariance)));
+        }
+
+        private synchronized void backOff() {
+            rto = Math.min(MAX_RTO_NANOS, rto * 2);
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+            try {
+                receiver.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            timer.shutdownNow();
+        }
+    }
+
+    private static boolean isBatchCommand(String verb) {
+        return "mget".equalsIgnoreCase(verb) || "mput".equalsIgnoreCase(verb) || "mdel".equalsIgnoreCase(verb);
+    }
+
+    // Sends an mget/mput/mdel as several datagrams of at most UDP_BATCH_BYTES, all in flight at
+    // once, and joins the per-key results in order
+    private static String sendBatchCommand(UdpClient client, String[] parts) throws IOException {
+        List<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>();
+        for (String chunk : splitBatchCommand(parts, UDP_BATCH_BYTES)) {
+            replies.add(client.send(chunk));
+        }
+        StringBuilder results = new StringBuilder();
+        boolean allOk = true;
+        try {
+            for (CompletableFuture<String> reply : replies) {
+                String response = reply.get();
+                allOk &= "OK".equals(response);
+                results.append(response);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a reply");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        return allOk ? "OK" : results.toString();
+    }
+
+    private static List<String> splitBatchCommand(String[] parts, int maxBytes) {
+        String verb = parts[0].toLowerCase();
+        int step = "mput".equals(verb) ? 2 : 1; // keep key/value pairs in the same datagram
+        List<String> chunks = new ArrayList<String>();
+        StringBuilder chunk = new StringBuilder(verb);
+        int chunkBytes = verb.length();
+        for (int i = 1; i < parts.length; i += step) {
+            StringBuilder item = new StringBuilder();
+            for (int j = i; j < Math.min(i + step, parts.length); j++) {
+                item.append(' ').append(parts[j]);
+            }
+            int itemBytes = item.toString().getBytes(StandardCharsets.UTF_8).length;
+            if (chunkBytes + itemBytes > maxBytes && chunk.length() > verb.length()) {
+                chunks.add(chunk.toString());
+                chunk = new StringBuilder(verb);
+                chunkBytes = verb.length();
+            }
+            chunk.append(item);
+            chunkBytes += itemBytes;
+        }
+        chunks.add(chunk.toString());
+        return chunks;
+    }
+
+      
+    // Non-interactive load generator: java KeyValueStore <tcp|tcp-nio|udp|rmi> bench [--connections=N]
+    // [--ops=N | --duration=SECONDS] [--read-ratio=0.9] [--keys=N] [--value-size=N]
+    // [--distribution=uniform|zipfian] [--rate=OPS_PER_SEC] [--host=H] [--preload=false]
+    // Without --rate every connection sends its next request as soon as the last one answers (closed loop).
+    // With --rate requests follow a fixed schedule (open loop) and latency counts from the scheduled send
+    // time, so a stalled server is charged for the requests it delayed instead of hiding them.
+    public static final class LoadGenerator {
+        private final String protocol;
+        private final String host;
+        private final int connections;
+        private final long totalOps;
+        private final long durationNanos;
+        private final double readRatio;
+        private final int keys;
+        private final String value;
+        private final ZipfianGenerator zipfian;
+        private final double rate;
+        private final LatencyHistogram service = new LatencyHistogram();
+        private final LatencyHistogram response = new LatencyHistogram();
+        private final AtomicLong issued = new AtomicLong();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        // One client connection; implementations are used by a single thread
+        private interface Connection extends Closeable {
+            String get(String key) throws IOException;
+
+            String put(String key, String value) throws IOException;
+        }
+
+        public LoadGenerator(String protocol) {
+            this.protocol = protocol;
+            this.host = getOption("host", "localhost");
+            this.connections = Integer.parseInt(getOption("connections", "16"));
+            this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(getOption("duration", "0")));
+            this.totalOps = durationNanos > 0 ? Long.MAX_VALUE : Long.parseLong(getOption("ops", "100000"));
+            this.readRatio = Double.parseDouble(getOption("read-ratio", "0.9"));
+            this.keys = Integer.parseInt(getOption("keys", "100000"));
+            char[] chars = new char[Integer.parseInt(getOption("value-size", "100"))];
+            Arrays.fill(chars, 'x');
+            this.value = new String(chars);
+            String distribution = getOption("distribution", "uniform");
+            if (!distribution.equals("uniform") && !distribution.equals("zipfian")) {
+                throw new IllegalArgumentException("Unknown distribution '" + distribution + "'. Use uniform or zipfian.");
+            }
+            this.zipfian = distribution.equals("zipfian") ? new ZipfianGenerator(keys, 0.99) : null;
+            this.rate = Double.parseDouble(getOption("rate", "0"));
+            if (connections <= 0 || keys <= 0 || readRatio < 0 || readRatio > 1) {
+                throw new IllegalArgumentException("connections and keys must be positive and read-ratio between 0 and 1");
+            }
+        }
+
+        public void run() throws Exception {
+            List<Connection> clients = new ArrayList<Connection>(connections);
+            try {
+                for (int i = 0; i < connections; i++) {
+                    clients.add(connect());
+                }
+                if (Boolean.parseBoolean(getOption("preload", "true"))) {
+                    preload(clients);
+                }
+                System.out.println(describe());
+                long start = System.nanoTime();
+                Thread[] workers = new Thread[connections];
+                for (int i = 0; i < connections; i++) {
+                    Connection client = clients.get(i);
+                    workers[i] = new Thread(() -> drive(client, start), "bench-" + i);
+                    workers[i].start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                report(System.nanoTime() - start);
+            } finally {
+                for (Connection client : clients) {
+                    client.close();
+                }
+            }
+        }
+
+        private String describe() {
+            return "Benchmark: " + protocol + (rate > 0 ? " open-loop at " + (long) rate + " ops/s" : " closed-loop")
+                    + ", " + connections + " connections, "
+                    + (durationNanos > 0 ? TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s" : totalOps + " ops")
+                    + ", " + Math.round(readRatio * 100) + "% reads, " + keys + " keys (" + (zipfian != null ? "zipfian" : "uniform")
+                    + "), " + value.length() + "-char values";
+        }
+
+        // Fills the key space so reads hit, spreading the keys over the connections
+        private void preload(List<Connection> clients) throws Exception {
+            Thread[] loaders = new Thread[clients.size()];
+            for (int i = 0; i < loaders.length; i++) {
+                Connection client = clients.get(i);
+                int first = i;
+                loaders[i] = new Thread(() -> {
+                    try {
+                        for (int key = first; key < keys; key += loaders.length) {
+                            client.put("key" + key, value);
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }, "bench-preload-" + i);
+                loaders[i].start();
+            }
+            for (Thread loader : loaders) {
+                loader.join();
+            }
+        }
+
+        private void drive(Connection client, long start) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * connections / rate) : 0;
+            long deadline = start + durationNanos;
+            for (long n = 0; ; n++) {
+                if (durationNanos > 0 ? System.nanoTime() >= deadline : issued.getAndIncrement() >= totalOps) {
+                    return;
+                }
+                long intended = System.nanoTime();
+                if (interval > 0) {
+                    intended = start + n * interval;
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                String key = "key" + (zipfian != null ? zipfian.next(random) : random.nextInt(keys));
+                long begin = System.nanoTime();
+                try {
+                    String result = random.nextDouble() < readRatio ? client.get(key) : client.put(key, value);
+                    if (result == null || result.startsWith("ERROR")) {
+                        errors.increment();
+                    }
+                } catch (IOException e) {
+                    errors.increment();
+                }
+                long end = System.nanoTime();
+                service.record(end - begin);
+                response.record(end - intended);
+                completed.increment();
+            }
+        }
+
+        private void report(long elapsedNanos) {
+            long ops = completed.sum();
+            double seconds = elapsedNanos / 1e9;
+            System.out.println(String.format("Throughput: %.0f ops/s (%d ops in %.2f s, %d errors)", ops / seconds, ops, seconds, errors.sum()));
+            long[] serviceSummary = LatencyHistogram.summarize(service.snapshot(), service.max());
+            long[] corrected;
+            if (rate > 0) {
+                corrected = LatencyHistogram.summarize(response.snapshot(), response.max());
+            } else {
+                // Closed loop never sends the requests a stall held back; back-fill them at the typical spacing
+                long[] buckets = LatencyHistogram.correctForCoordinatedOmission(service.snapshot(), Math.max(1, serviceSummary[1]));
+                corrected = LatencyHistogram.summarize(buckets, service.max());
+            }
+            System.out.println("Latency (us)       count       p50       p90       p99      p999       max");
+            System.out.println(formatLatencyRow("service", serviceSummary));
+            System.out.println(formatLatencyRow("corrected", corrected));
+        }
+
+        private static String formatLatencyRow(String label, long[] summary) {
+            return String.format("  %-10s %10d %9.1f %9.1f %9.1f %9.1f %9.1f", label, summary[0],
+                    summary[1] / 1000.0, summary[2] / 1000.0, summary[3] / 1000.0, summary[4] / 1000.0, summary[5] / 1000.0);
+        }
+
+        private Connection connect() throws Exception {
+            switch (protocol) {
+                case "tcp":
+                case "tcp-nio":
+                    return tcpConnection();
+                case "udp":
+                    return udpConnection();
+                case "rmi":
+                    return rmiConnection();
+                default:
+                    throw new IllegalArgumentException("Cannot benchmark protocol '" + protocol + "'. Use tcp, tcp-nio, udp or rmi.");
+            }
+        }
+
+        private Connection tcpConnection() throws IOException {
+            Socket socket = new Socket(host, tcpPort);
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false);
+            return new Connection() {
+                private String call(String command) throws IOException {
+                    out.print(command);
+                    out.print('\n');
+                    out.flush();
+                    return in.readLine();
+                }
+
+                @Override
+                public String get(String key) throws IOException {
+                    return call("get " + key);
+                }
+
+                @Override
+                public String put(String key, String value) throws IOException {
+                    return call("put " + key + " " + value);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    socket.close();
+                }
+            };
+        }
+
+        // Requests carry UdpClient's "#<id> " prefix, so a reply that arrives after its request timed
+        // out is recognised by its id and dropped instead of being taken as the next request's answer
+        private Connection udpConnection() throws IOException {
+            DatagramSocket socket = new DatagramSocket();
+            socket.connect(InetAddress.getByName(host), udpPort);
+            DatagramPacket reply = new DatagramPacket(new byte[UDP_MAX_PAYLOAD], UDP_MAX_PAYLOAD);
+            return new Connection() {
+                private long nextId;
+
+                private String call(String command) throws IOException {
+                    String prefix = "#" + ++nextId + " ";
+                    byte[] data = (prefix + command).getBytes(StandardCharsets.UTF_8);
+                    socket.send(new DatagramPacket(data, data.length));
+                    // a lost datagram counts as an error after a second instead of stalling the run
+                    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                    while (true) {
+                        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("No reply to " + prefix.trim());
+                        }
+                        socket.setSoTimeout((int) remaining);
+                        reply.setLength(UDP_MAX_PAYLOAD);
+                        socket.receive(reply);
+                        String text = new String(reply.getData(), 0, reply.getLength(), StandardCharsets.UTF_8);
+                        if (text.startsWith(prefix)) {
+                            return text.substring(prefix.length());
+                        }
+                    }
+                }
+
+                @Override
+                public String get(String key) throws IOException {
+                    return call("get " + key);
+                }
+
+                @Override
+                public String put(String key, String value) throws IOException {
+                    return call("put " + key + " " + value);
+                }
+
+                @Override
+                public void close() {
+                    socket.close();
+                }
+            };
+        }
+
+        private Connection rmiConnection() throws Exception {
+            KeyValueStoreServer server = (KeyValueStoreServer) LocateRegistry.getRegistry(host, rmiPort).lookup("KeyValueStoreServer");
+            return new Connection() {
+                @Override
+                public String get(String key) throws IOException {
+                    return server.get(key);
+                }
+
+                @Override
+                public String put(String key, String value) throws IOException {
+                    return server.put(key, value);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    // YCSB's Zipfian generator (Gray et al., "Quickly Generating Billion-Record Synthetic Databases"),
+    // with the rank hashed so the hot keys are spread over the key space rather than being key0, key1, ...
+    public static final class ZipfianGenerator {
+        private final long items;
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        public ZipfianGenerator(long items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            double zeta = 0;
+            for (long i = 1; i <= items; i++) {
+                zeta += 1.0 / Math.pow(i, theta);
+            }
+            this.zetan = zeta;
+            double zeta2 = 1.0 + Math.pow(0.5, theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        public long next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+            }
+            return Math.floorMod(fnv1a(rank), items);
+        }
+
+        private static long fnv1a(long value) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= value & 0xFF;
+                hash *= 0x100000001b3L;
+                value >>>= 8;
+            }
+            return hash;
+        }
+    }
+
+    private static String processCommand(String command, String transport) {
+    	//System.out.println("Processing command: " + command); // Debug line
+        long start = System.nanoTime();
+        String[] parts = command.split(" ");
+        //System.out.println("Command parts: " + Arrays.toString(parts)); // Debug line
+        String name = parts[0].toLowerCase();
+        countCommand(name);
+        try {
+            return executeCommand(name, parts);
+        } finally {
+            recordLatency(transport, name, System.nanoTime() - start);
+        }
+    }
+
+    private static String executeCommand(String name, String[] parts) {
+        String readOnly = readOnlyError(name);
+        if (readOnly != null) {
+            return readOnly;
+        }
+        switch (name) {
+            case "put":
+                return handlePut(parts);
+            case "expire":
+                return handleExpire(parts);
+            case "ttl":
+                return handleTtl(parts);
+            case "get":
+                return handleGet(parts);
+            case "del":
+                return handleDel(parts);
+            case "putifabsent":
+                return handlePutIfAbsent(parts);
+            case "cas":
+                return handleCas(parts);
+            case "incr":
+                return handleIncr(parts);
+            case "append":
+                return handleAppend(parts);
+            case "mget":
+                return handleMget(parts);
+            case "mput":
+                return handleMput(parts);
+            case "mdel":
+                return handleMdel(parts);
+            case "store": // Handle 'store' command
+                return Store();
+            case "test":
+                return handleTest(); // Handle 'test' command
+            case "getlen":
+                return handleGetLen(); // Handle 'getlen' command
+            case "test2":
+                return handleTest2();
+            case "scan":
+                return handleScan(parts);
+            case "memory":
+                return handleMemory();
+            case "shards":
+                return handleShards();
+            case "stats":
+                return handleStats();
+            case "latency":
+                return handleLatency(parts);
+            case "replinfo":
+                return handleReplInfo();
+            case "save":
+                return handleSave(parts, false);
+            case "bgsave":
+                return handleSave(parts, true);
+            case "sync":
+                return "ERROR: Replicas sync over the blocking TCP server.";
+            case "exit":
+            	//System.out.println("Exit command received, shutting down server."); // Debug line
+            	shutdownServer = true;
+            	try {
+                    if (serverSocket != null && !serverSocket.isClosed()) {
+                        serverSocket.close();
+                    }
+                    if (nioServerChannel != null && nioServerChannel.isOpen()) {
+                        nioServerChannel.close(); // unblocks the NIO acceptor
+                    }
+                } catch (IOException e) {
+                    Log.error("Error closing server socket", e);
+                }
+                return "Server shutting down.";
+            default:
+                return "ERROR: Unknown command.";
+        }
+    }
+    
+
+    private static String[] getClientCommand() {
+        BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
+        String[] command = new String[3]; // Command, Key, Value
+        try {
+            System.out.println("\nChoose an action:");
+            System.out.println("1. Put");
+            System.out.println("2. Get");
+            System.out.println("3. Del");
+            System.out.println("4. Store");
+            System.out.println("5. Exit");
+            System.out.println("6. Test");
+            System.out.println("7. Length");
+            System.out.println("8. Test2");
+            System.out.println("9. Command (putifabsent, cas, incr, append, mget, mput, mdel, scan, stats, ...)");
+            System.out.print("Enter choice: ");
+
+            String userInput = stdIn.readLine();
+            switch (userInput) {
+                case "1": // Put
+                    System.out.print("Enter key: ");
+                    command[1] = stdIn.readLine();
+                    System.out.print("Enter value: ");
+                    command[2] = stdIn.readLine();
+                    command[0] = "put";
+                    break;
+                case "2": // Get
+                	command = new String[2];
+                    System.out.print("Enter key: ");
+                    command[1] = stdIn.readLine();
+                    command[0] = "get";
+                    break;
+                case "3": // Del
+                	command = new String[2];
+                    System.out.print("Enter key: ");
+                    command[1] = stdIn.readLine();
+                    command[0] = "del";
+                    break;
+                case "4": // Store
+                    command[0] = "store";
+                    break;
+                case "5": // Exit
+                	command = new String[1];
+                    command[0] = "exit";
+                    //System.out.println("Client Shutting down"); // Debug line
+                    break;
+                case "6": // Test
+                    command[0] = "test";
+                    break;
+                case "7": // Length
+                    command[0] = "getlen";
+                    break;
+                case "8": // Test2
+                    command[0] = "test2";
+                    break;
+                case "9": // Raw command line, e.g. "cas key expected new"
+                    System.out.print("Enter command: ");
+                    command = stdIn.readLine().trim().split(" ");
+                    break;
+                default:
+                    System.out.println("Invalid choice. Please enter a number between 1 and 9.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return command;
+    }
+
+    private static String handlePut(String[] parts) {
+        if (parts.length == 5 && "ex".equalsIgnoreCase(parts[3])) {
+            long seconds = parseTtlSeconds(parts[4]);
+            if (cacheEngine == null || seconds <= 0) {
+                return cacheEngine == null ? CACHE_MODE_REQUIRED : "ERROR: TTL must be a positive number of seconds.";
+            }
+            cacheEngine.put(parts[1], parts[2], TimeUnit.SECONDS.toMillis(seconds));
+            return "OK";
+        }
+        if (parts.length != 3) {
+            return "ERROR: Usage: put <key> <value> [ex <seconds>]";
+        }
+        engine.put(parts[1], parts[2]); // engines are safe for concurrent writers, no lock needed here
+        return "OK";
+    }
+
+    private static final String CACHE_MODE_REQUIRED = "ERROR: Expiry needs cache mode (--cache or --max-memory).";
+
+    private static long parseTtlSeconds(String seconds) {
+        try {
+            return Long.parseLong(seconds);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String handleExpire(String[] parts) {
+        if (parts.length != 3) {
+            return "ERROR: Usage: expire <key> <seconds>";
+        }
+        if (cacheEngine == null) {
+            return CACHE_MODE_REQUIRED;
+        }
+        long seconds = parseTtlSeconds(parts[2]);
+        if (seconds < 0) {
+            return "ERROR: TTL must be a number of seconds.";
+        }
+        return cacheEngine.expire(parts[1], TimeUnit.SECONDS.toMillis(seconds)) ? "OK" : "NOT FOUND";
+    }
+
+    // Remaining seconds (rounded up), -1 for a key without a TTL
+    private static String handleTtl(String[] parts) {
+        if (parts.length != 2) {
+            return "ERROR: Usage: ttl <key>";
+        }
+        if (cacheEngine == null) {
+            return engine.get(parts[1]) != null ? "-1" : "NOT FOUND";
+        }
+        long ttl = cacheEngine.ttl(parts[1]);
+        return ttl == -2 ? "NOT FOUND" : ttl == -1 ? "-1" : String.valueOf((ttl + 999) / 1000);
+    }
+
+    private static String handleGet(String[] parts) {
+        if (parts.length != 2) {
+        	 return "ERROR: Usage: get <key> - Received parts: " + Arrays.toString(parts);
+        }
+        String value = lookup(parts[1]);
+        return value != null ? value : "NOT FOUND";
+    }
+
+    private static String handleDel(String[] parts) {
+        if (parts.length != 2) {
+        	return "ERROR: Usage: del <key> - Received parts: " + Arrays.toString(parts);
+        }
+        return engine.remove(parts[1]) != null ? "OK" : "NOT FOUND";
+    }
+
+    private static String handlePutIfAbsent(String[] parts) {
+        if (parts.length != 3) {
+            return "ERROR: Usage: putifabsent <key> <value>";
+        }
+        return putIfAbsentValue(parts[1], parts[2]);
+    }
+
+    private static String handleCas(String[] parts) {
+        if (parts.length != 4) {
+            return "ERROR: Usage: cas <key> <expected> <new>";
+        }
+        return compareAndSetValue(parts[1], parts[2], parts[3]);
+    }
+
+    private static String handleIncr(String[] parts) {
+        if (parts.length != 3) {
+            return "ERROR: Usage: incr <key> <delta>";
+        }
+        try {
+            return incrementValue(parts[1], Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            return "ERROR: delta is not an integer: " + parts[2];
+        }
+    }
+
+    private static String handleAppend(String[] parts) {
+        if (parts.length != 3) {
+            return "ERROR: Usage: append <key> <value>";
+        }
+        return appendValue(parts[1], parts[2]);
+    }
+
+    private static String handleMget(String[] parts) {
+        if (parts.length < 2) {
+            return "ERROR: Usage: mget <key> [<key> ...]";
+        }
+        List<String> keys = Arrays.asList(parts).subList(1, parts.length);
+        return formatBatchResults(keys, getValues(keys));
+    }
+
+    private static String handleMput(String[] parts) {
+        if (parts.length < 3 || parts.length % 2 == 0) {
+            return "ERROR: Usage: mput <key> <value> [<key> <value> ...]";
+        }
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        for (int i = 1; i < parts.length; i += 2) {
+            entries.put(parts[i], parts[i + 1]);
+        }
+        return putValues(entries);
+    }
+
+    private static String handleMdel(String[] parts) {
+        if (parts.length < 2) {
+            return "ERROR: Usage: mdel <key> [<key> ...]";
+        }
+        List<String> keys = Arrays.asList(parts).subList(1, parts.length);
+        return formatBatchResults(keys, deleteValues(keys));
+    }
+
+    // Per-key results in the same "key=value; " layout as the store command
+    private static String formatBatchResults(List<String> keys, List<String> results) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < keys.size(); i++) {
+            sb.append(keys.get(i)).append("=").append(results.get(i)).append("; ");
+        }
+        return sb.toString();
+    }
+
+    // Multi-key operations shared by the TCP/UDP commands and the RMI server
+    private static List<String> getValues(List<String> keys) {
+        List<String> values = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            String value = lookup(key);
+            values.add(value != null ? value : "NOT FOUND");
+        }
+        return values;
+    }
+
+    private static String putValues(Map<String, String> entries) {
+        engine.putAll(entries);
+        return "OK";
+    }
+
+    private static List<String> deleteValues(List<String> keys) {
+        List<String> results = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            results.add(engine.remove(key) != null ? "OK" : "NOT FOUND");
+        }
+        return results;
+    }
+
+    // Atomic single-key updates shared by the TCP/UDP commands and the RMI server.
+    // Each one runs inside the engine's per-key compute, so there is no read-modify-write race.
+    private static String putIfAbsentValue(String key, String value) {
+        final boolean[] inserted = new boolean[1];
+        engine.compute(key, (k, current) -> {
+            if (current != null) {
+                return current;
+            }
+            inserted[0] = true;
+            return value;
+        });
+        return inserted[0] ? "OK" : "EXISTS";
+    }
+
+    private static String compareAndSetValue(String key, String expected, String update) {
+        final String[] result = {"NOT FOUND"};
+        engine.compute(key, (k, current) -> {
+            if (current == null) {
+                return null;
+            }
+            if (!current.equals(expected)) {
+                result[0] = "FAILED: " + current;
+                return current;
+            }
+            result[0] = "OK";
+            return update;
+        });
+        return result[0];
+    }
+
+    private static String incrementValue(String key, long delta) {
+        try {
+            return engine.compute(key,
+                    (k, current) -> current == null ? Long.toString(delta) : Long.toString(Math.addExact(Long.parseLong(current), delta)));
+        } catch (NumberFormatException e) {
+            return "ERROR: value is not an integer";
+        } catch (ArithmeticException e) {
+            return "ERROR: increment would overflow";
+        }
+    }
+
+    private static String appendValue(String key, String suffix) {
+        engine.compute(key, (k, current) -> current == null ? suffix : current.concat(suffix));
+        return "OK";
+    }
+    
+    private static String Store() {
+        StringBuilder sb = new StringBuilder();
+        // Stop once past the trim point instead of rendering the whole store; use scan to see everything
+        Iterator<Map.Entry<String, String>> entries = engine.iterator();
+        while (sb.length() <= 65000 && entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            sb.append(entry.getKey()).append("=").append(entry.getValue()).append("; ");
+        }
+        String fullContents = sb.toString();
+        if (fullContents.length() > 65000) {
+            // Trim the contents if too long
+            String trimmedContents = "TRIMMED:" + fullContents.substring(0, 65000) + ".....trimmed";
+            return trimmedContents;
+        } else {
+            return fullContents;
+        }
+    }
+    
+    private static String handleTest() {
+        int numberOfEntriesNeeded = 700; // Adjust if necessary based on the size of keys and values
+        for (int i = 0; i < numberOfEntriesNeeded; i++) {
+            String key = "key" + i;
+            // Create a value that is 90 characters long
+            String value = "value" + i + new String(new char[80]).replace('\0', 'x');
+            engine.put(key, value);
+        }
+
+        // Step 2: Trigger the `store` command
+        String storeContents = Store();
+        return "TEST COMPLETED: Store contents length: " + storeContents.length();
+    }
+
+    private static String handleGetLen() {
+        // Same number Store().length() would give, without building the listing
+        long length = meteredEngine.listingChars();
+        String contentLength = String.valueOf(length > 65000 ? "TRIMMED:".length() + 65000 + ".....trimmed".length() : length);
+        return "LENGTH:" + contentLength;
+    }
+
+    private static String handleTest2() {
+        long storeSize = engine.size();
+        StringBuilder firstKeys = new StringBuilder("First keys:");
+        Iterator<Map.Entry<String, String>> entries = engine.iterator();
+        for (int count = 0; count < 10 && entries.hasNext(); count++) {
+            firstKeys.append(" ").append(entries.next().getKey());
+        }
+        return "TEST2 COMPLETED: Size of store: " + storeSize + "; " + firstKeys.toString();
+    }
+
+    private static String handleScan(String[] parts) {
+        String usage = "ERROR: Usage: scan <cursor> [count] [match <prefix>] [keys]";
+        if (parts.length < 2 || parts.length > 6) {
+            return usage;
+        }
+        // keys: reply with only the keys, each framed as <length>:<key>, so any key can be read back
+        int end = parts.length;
+        boolean keysOnly = end > 2 && parts[end - 1].equalsIgnoreCase("keys") && !parts[end - 2].equalsIgnoreCase("match");
+        if (keysOnly) {
+            end--;
+        }
+        long cursor;
+        int count = SCAN_DEFAULT_COUNT;
+        String prefix = null;
+        int next = 2;
+        try {
+            cursor = Long.parseLong(parts[1]);
+            if (next < end && !parts[next].equalsIgnoreCase("match")) {
+                count = Integer.parseInt(parts[next++]);
+            }
+        } catch (NumberFormatException e) {
+            return usage;
+        }
+        if (next < end) {
+            if (next + 2 != end || !parts[next].equalsIgnoreCase("match")) {
+                return usage;
+            }
+            prefix = parts[next + 1];
+        }
+        try {
+            ScanPage page = scanPage(cursor, count, prefix);
+            if (keysOnly) {
+                StringBuilder sb = new StringBuilder("CURSOR:").append(page.cursor).append(' ');
+                for (String key : page.keys) {
+                    sb.append(key.length()).append(':').append(key);
+                }
+                return sb.toString();
+            }
+            return "CURSOR:" + page.cursor + " " + formatBatchResults(page.keys, page.values);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    // Cursor-based iteration shared by the scan command and the RMI server. A cursor is an engine
+    // iterator parked server-side between calls, so each call costs one page no matter how big the
+    // store is. Iteration is weakly consistent: keys that exist for the whole scan are returned once,
+    // keys added or removed meanwhile may or may not be.
+    private static final int SCAN_DEFAULT_COUNT = 10;
+    private static final int SCAN_MAX_COUNT = 1000;
+    private static final int SCAN_MAX_CURSORS = 1024;
+    private static final long SCAN_CURSOR_TIMEOUT_MS = 60000;
+
+    private static final ConcurrentHashMap<Long, ScanCursor> scanCursors = new ConcurrentHashMap<Long, ScanCursor>();
+    // Cursor ids are random, so a client cannot guess (and continue or steal) another client's scan
+    private static final SecureRandom scanCursorIds = new SecureRandom();
+
+    private static final class ScanCursor {
+        final Iterator<Map.Entry<String, String>> entries;
+        final String prefix;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        ScanCursor(Iterator<Map.Entry<String, String>> entries, String prefix) {
+            this.entries = entries;
+            this.prefix = prefix;
+        }
+    }
+
+    // One page of a scan; cursor is 0 once the iteration is complete
+    public static final class ScanPage implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final long cursor;
+        public final List<String> keys;
+        public final List<String> values;
+
+        ScanPage(long cursor, List<String> keys, List<String> values) {
+            this.cursor = cursor;
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    private static ScanPage scanPage(long cursor, int count, String prefix) {
+        if (count < 1 || count > SCAN_MAX_COUNT) {
+            throw new IllegalArgumentException("count must be between 1 and " + SCAN_MAX_COUNT);
+        }
+        ScanCursor scan;
+        if (cursor == 0) {
+            expireScanCursors();
+            if (scanCursors.size() >= SCAN_MAX_CURSORS) {
+                throw new IllegalStateException("Too many open scan cursors, try again later");
+            }
+            scan = new ScanCursor(engine.iterator(), prefix);
+            do {
+                cursor = scanCursorIds.nextLong() & Long.MAX_VALUE; // positive, 0 means "new scan"
+            } while (cursor == 0);
+        } else {
+            // Taking the cursor out of the table gives this call sole use of its iterator
+            scan = scanCursors.remove(cursor);
+            if (scan == null) {
+                throw new IllegalArgumentException("Unknown or expired cursor " + cursor);
+            }
+        }
+        List<String> keys = new ArrayList<String>(count);
+        List<String> values = new ArrayList<String>(count);
+        // A selective prefix can skip many entries, so cap the work per page too; the page may then come back short
+        int budget = count * 10;
+        while (keys.size() < count && budget-- > 0 && scan.entries.hasNext()) {
+            Map.Entry<String, String> entry = scan.entries.next();
+            if (scan.prefix == null || entry.getKey().startsWith(scan.prefix)) {
+                keys.add(entry.getKey());
+                values.add(entry.getValue());
+            }
+        }
+        if (!scan.entries.hasNext()) {
+            return new ScanPage(0, keys, values);
+        }
+        scan.lastUsed = System.currentTimeMillis();
+        scanCursors.put(cursor, scan);
+        return new ScanPage(cursor, keys, values);
+    }
+
+    private static void expireScanCursors() {
+        long cutoff = System.currentTimeMillis() - SCAN_CURSOR_TIMEOUT_MS;
+        scanCursors.values().removeIf(scan -> scan.lastUsed < cutoff);
+    }
+
+    // Client-side helper that walks the whole keyspace of an RMI server one page at a time
+    public static Iterator<Map.Entry<String, String>> scanAll(KeyValueStoreServer server, int pageSize, String prefix) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private ScanPage page;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (page == null || (index == page.keys.size() && page.cursor != 0)) {
+                    try {
+                        page = server.scan(page == null ? 0 : page.cursor, pageSize, prefix);
+                    } catch (RemoteException e) {
+                        throw new UncheckedIOException("Scan failed", e);
+                    }
+                    index = 0;
+                }
+                return index < page.keys.size();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<String, String>(page.keys.get(index), page.values.get(index));
+                index++;
+                return entry;
+            }
+        };
+    }
+
+    private static String handleStats() {
+        Map<String, Long> stats = statsSnapshot();
+        StringBuilder sb = new StringBuilder("STATS");
+        for (Map.Entry<String, Long> stat : stats.entrySet()) {
+            sb.append(" ").append(stat.getKey()).append("=").append(stat.getValue());
+        }
+        long lookups = stats.get("hits") + stats.get("misses");
+        sb.append(" hit_rate=").append(lookups == 0 ? "0.0" : String.format("%.1f", 100.0 * stats.get("hits") / lookups)).append("%");
+        return sb.toString();
+    }
+
+    // Commands that change data: deduplicated on UDP retries and refused by replicas
+    private static final Set<String> WRITE_COMMANDS = new HashSet<String>(Arrays.asList(
+            "put", "del", "putifabsent", "cas", "incr", "append", "mput", "mdel", "expire", "test"));
+
+    // Server counters. All LongAdders, so the request paths only pay an uncontended add and a
+    // stats poll is O(number of counters), independent of the store size.
+    private static final String[] STAT_COMMANDS = {"put", "get", "del", "expire", "ttl", "putifabsent", "cas", "incr", "append",
+            "mget", "mput", "mdel", "scan", "store", "test", "getlen", "test2", "memory", "shards", "stats", "latency", "replinfo", "sync", "save", "bgsave", "exit"};
+    private static final Map<String, LongAdder> commandCounts = new HashMap<String, LongAdder>();
+    private static final LongAdder otherCommands = new LongAdder();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder udpDatagrams = new LongAdder();
+    private static final LongAdder udpDuplicates = new LongAdder(); // retransmitted writes answered from the dedup cache
+
+    static {
+        for (String command : STAT_COMMANDS) {
+            commandCounts.put(command, new LongAdder()); // fixed key set, so plain HashMap reads are safe
+        }
+    }
+
+    private static void countCommand(String command) {
+        LongAdder counter = commandCounts.get(command);
+        (counter != null ? counter : otherCommands).increment();
+    }
+
+    // Single-key read used by every get path, so hits and misses are counted the same everywhere
+    private static String lookup(String key) {
+        String value = engine.get(key);
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+
+    private static Map<String, Long> statsSnapshot() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("keys", engine.size());
+        stats.put("data_bytes", meteredEngine.dataBytes());
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("expired_keys", cacheEngine != null ? cacheEngine.expiredKeys() : 0);
+        stats.put("evicted_keys", cacheEngine != null ? cacheEngine.evictedKeys() : 0);
+        long opened = connectionsOpened.sum();
+        stats.put("connections_active", opened - connectionsClosed.sum());
+        stats.put("connections_total", opened);
+        stats.put("udp_datagrams", udpDatagrams.sum());
+        stats.put("udp_duplicates", udpDuplicates.sum());
+        stats.put("tcp_queue_depth", (long) tcpThreadPool.queueDepth());
+        stats.put("tcp_rejected", tcpThreadPool.rejected());
+        stats.put("udp_queue_depth", (long) threadPool.queueDepth());
+        stats.put("udp_rejected", threadPool.rejected());
+        stats.put("shed_requests", tcpThreadPool.shed() + threadPool.shed());
+        stats.put("rate_limited", rateLimited.sum());
+        stats.put("log_dropped", Log.dropped());
+        stats.put("log_suppressed", Log.suppressed());
+        stats.put("save_in_progress", saveRunning.get() ? 1L : 0L);
+        stats.put("last_save_records", lastSaveRecords);
+        stats.put("last_save_time", lastSaveTime);
+        stats.put("failed_saves", failedSaves.sum());
+        for (String command : STAT_COMMANDS) {
+            stats.put("ops_" + command, commandCounts.get(command).sum());
+        }
+        stats.put("ops_other", otherCommands.sum());
+        return stats;
+    }
+
+    private static String handleLatency(String[] parts) {
+        if (parts.length > 2) {
+            return "ERROR: Usage: latency [<command>|<transport>]";
+        }
+        String filter = parts.length == 2 ? parts[1].toLowerCase() : null;
+        StringBuilder sb = new StringBuilder("LATENCY (us)");
+        for (Map.Entry<String, long[]> entry : latencySummaries().entrySet()) {
+            String name = entry.getKey();
+            if (filter != null && !name.startsWith(filter + "/") && !name.endsWith("/" + filter)) {
+                continue;
+            }
+            long[] summary = entry.getValue();
+            sb.append(" ").append(name).append(" count=").append(summary[0]);
+            String[] labels = {"p50", "p90", "p99", "p999", "max"};
+            for (int i = 0; i < labels.length; i++) {
+                sb.append(" ").append(labels[i]).append("=").append(String.format("%.1f", summary[i + 1] / 1000.0));
+            }
+            sb.append(";");
+        }
+        return sb.toString();
+    }
+
+    // Latency histograms keyed by transport then command; the "all" transport is merged at report
+    // time and "queue" holds the time tasks wait in the TCP and UDP executors before they start.
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>> latencies =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, LatencyHistogram>>();
+
+    private static void recordLatency(String transport, String command, long nanos) {
+        if (!commandCounts.containsKey(command) && !transport.equals("queue")) {
+            command = "other"; // command names come from clients, keep the key set bounded
+        }
+        // get() first: computeIfAbsent on ConcurrentHashMap locks the bin even when the key is present
+        ConcurrentHashMap<String, LatencyHistogram> byCommand = latencies.get(transport);
+        if (byCommand == null) {
+            byCommand = latencies.computeIfAbsent(transport, t -> new ConcurrentHashMap<String, LatencyHistogram>());
+        }
+        LatencyHistogram histogram = byCommand.get(command);
+        if (histogram == null) {
+            histogram = byCommand.computeIfAbsent(command, c -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    // "transport/command" -> {count, p50, p90, p99, p999, max} in nanoseconds
+    private static Map<String, long[]> latencySummaries() {
+        Map<String, long[]> merged = new TreeMap<String, long[]>();
+        Map<String, Long> mergedMax = new HashMap<String, Long>();
+        Map<String, long[]> summaries = new TreeMap<String, long[]>();
+        for (Map.Entry<String, ConcurrentHashMap<String, LatencyHistogram>> transport : latencies.entrySet()) {
+            for (Map.Entry<String, LatencyHistogram> command : transport.getValue().entrySet()) {
+                LatencyHistogram histogram = command.getValue();
+                long[] counts = histogram.snapshot();
+                summaries.put(transport.getKey() + "/" + command.getKey(), LatencyHistogram.summarize(counts, histogram.max()));
+                if (!transport.getKey().equals("queue")) {
+                    long[] total = merged.computeIfAbsent(command.getKey(), c -> new long[counts.length]);
+                    for (int i = 0; i < counts.length; i++) {
+                        total[i] += counts[i];
+                    }
+                    mergedMax.merge(command.getKey(), histogram.max(), Math::max);
+                }
+            }
+        }
+        for (Map.Entry<String, long[]> command : merged.entrySet()) {
+            summaries.put("all/" + command.getKey(), LatencyHistogram.summarize(command.getValue(), mergedMax.get(command.getKey())));
+        }
+        return summaries;
+    }
+
+    // HDR-style log-linear histogram of nanosecond values: exact below 64, then 32 linear sub-buckets
+    // per power of two, so every recorded value is within ~3% of its bucket. Recording is one
+    // atomic add on a stripe picked by thread id, which keeps hot commands from fighting over a cache line.
+    public static final class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final long MAX_VALUE = (1L << 36) - 1; // ~69 s, larger values are clamped
+        private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+        private static final int STRIPES = 4;
+        private static final double[] PERCENTILES = {0.50, 0.90, 0.99, 0.999};
+
+        private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private static int bucketIndex(long value) {
+            int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+            return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+        }
+
+        private static long highestEquivalentValue(int index) {
+            if (index < 2 << SUB_BUCKET_BITS) {
+                return index;
+            }
+            int shift = (index >> SUB_BUCKET_BITS) - 1;
+            long subBucket = index - (shift << SUB_BUCKET_BITS);
+            return ((subBucket + 1) << shift) - 1;
+        }
+
+        public void record(long nanos) {
+            long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            counts.incrementAndGet(stripe * BUCKETS + bucketIndex(value));
+            max.accumulate(nanos);
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        // Per-bucket counts with the stripes folded together
+        public long[] snapshot() {
+            long[] merged = new long[BUCKETS];
+            for (int i = 0; i < counts.length(); i++) {
+                merged[i % BUCKETS] += counts.get(i);
+            }
+            return merged;
+        }
+
+        // HdrHistogram-style post-hoc correction: a sample of v > interval means the requests that
+        // should have been sent every interval during it were never measured, so add them at
+        // v - interval, v - 2 * interval, ... down to the interval itself.
+        public static long[] correctForCoordinatedOmission(long[] buckets, long interval) {
+            long[] corrected = buckets.clone();
+            for (int index = 0; index < buckets.length; index++) {
+                long count = buckets[index];
+                if (count == 0) {
+                    continue;
+                }
+                for (long missing = highestEquivalentValue(index) - interval; missing >= interval; missing -= interval) {
+                    corrected[bucketIndex(Math.min(missing, MAX_VALUE))] += count;
+                }
+            }
+            return corrected;
+        }
+
+        public static long[] summarize(long[] buckets, long max) {
+            long total = 0;
+            for (long count : buckets) {
+                total += count;
+            }
+            long[] summary = new long[PERCENTILES.length + 2];
+            summary[0] = total;
+            int index = 0;
+            long seen = 0;
+            for (int p = 0; p < PERCENTILES.length && total > 0; p++) {
+                long target = Math.max(1, (long) Math.ceil(PERCENTILES[p] * total));
+                while (seen + buckets[index] < target) {
+                    seen += buckets[index++];
+                }
+                summary[p + 1] = Math.min(highestEquivalentValue(index), max);
+            }
+            summary[summary.length - 1] = max;
+            return summary;
+        }
+    }
+
+    // JMX view of the same numbers as the stats and latency commands (jconsole: KeyValueStore:type=Metrics)
+    public interface KeyValueStoreMetricsMXBean {
+        Map<String, Long> getStats();
+
+        // "transport/command" -> "count=... p50=... p90=... p99=... p999=... max=..." in microseconds
+        Map<String, String> getLatencies();
+
+        // {count, p50, p90, p99, p999, max} in nanoseconds, or null if nothing was recorded under that name
+        long[] latencyPercentiles(String name);
+    }
+
+    public static class KeyValueStoreMetrics implements KeyValueStoreMetricsMXBean {
+        @Override
+        public Map<String, Long> getStats() {
+            return statsSnapshot();
+        }
+
+        @Override
+        public Map<String, String> getLatencies() {
+            Map<String, String> result = new TreeMap<String, String>();
+            for (Map.Entry<String, long[]> entry : latencySummaries().entrySet()) {
+                long[] s = entry.getValue();
+                result.put(entry.getKey(), String.format("count=%d p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f",
+                        s[0], s[1] / 1000.0, s[2] / 1000.0, s[3] / 1000.0, s[4] / 1000.0, s[5] / 1000.0));
+            }
+            return result;
+        }
+
+        @Override
+        public long[] latencyPercentiles(String name) {
+            return latencySummaries().get(name);
+        }
+    }
+
+    private static void registerMetricsMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new KeyValueStoreMetrics(), KeyValueStoreMetricsMXBean.class, true),
+                    new ObjectName("KeyValueStore:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static ShardedStorageEngine shardedEngine; // set with --storage=sharded, for the shards command
+
+    private static String handleShards() {
+        if (shardedEngine == null) {
+            return "ERROR: The storage engine is not sharded.";
+        }
+        StringBuilder sb = new StringBuilder("SHARDS");
+        long[][] stats = shardedEngine.queueStats();
+        for (int i = 0; i < stats.length; i++) {
+            sb.append(" shard").append(i).append("=depth:").append(stats[i][0])
+                    .append(",peak:").append(stats[i][1]).append(",ops:").append(stats[i][2]).append(";");
+        }
+        return sb.toString();
+    }
+
+    private static String handleMemory() {
+        String report = engine.memoryReport();
+        return report != null ? report : "ERROR: The storage engine has no memory report.";
+    }
+
+    // Storage engines. Every transport works against the single static engine, so new backends
+    // plug in here without touching processCommand or the RMI server.
+    public interface StorageEngine {
+        String get(String key);
+
+        // Returns the previous value, or null
+        String put(String key, String value);
+
+        // Returns the removed value, or null
+        String remove(String key);
+
+        // Atomic per-key read-modify-write with Map.compute semantics: a null result removes the key.
+        // The function may run while the key is locked, so it must be short and must not touch the engine.
+        String compute(String key, BiFunction<String, String, String> remapping);
+
+        long size();
+
+        // Weakly consistent, like ConcurrentHashMap's iterators
+        Iterator<Map.Entry<String, String>> iterator();
+
+        default void forEach(BiConsumer<String, String> action) {
+            Iterator<Map.Entry<String, String>> entries = iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        }
+
+        default void putAll(Map<String, String> entries) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Engine-specific memory breakdown for the memory command, or null if the engine has none
+        default String memoryReport() {
+            return null;
+        }
+
+        default void close() throws IOException {
+        }
+    }
+
+    public static class ConcurrentHashMapStorageEngine implements StorageEngine {
+        private final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<String, String>();
+
+        @Override
+        public String get(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return map.put(key, value);
+        }
+
+        @Override
+        public String remove(String key) {
+            return map.remove(key);
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            return map.compute(key, remapping);
+        }
+
+        @Override
+        public long size() {
+            return map.mappingCount();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return map.entrySet().iterator();
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, String> action) {
+            map.forEach(action);
+        }
+    }
+
+    // Shard-per-core engine: the keyspace is split over N shards, each a plain HashMap owned by one
+    // thread. Callers hand operations to the owning shard through a bounded MPSC ring and wait on
+    // a future, so the tables themselves need no locks, CAS or volatile reads, and a shard's
+    // table never shares cache lines with another core's. A full ring pushes back on its callers.
+    public static class ShardedStorageEngine implements StorageEngine {
+        private static final int RING_CAPACITY = 4096;
+        private static final int SPINS_BEFORE_PARK = 64;
+
+        private final Shard[] shards;
+
+        private static final class Task<T> {
+            final Function<HashMap<String, String>, T> operation;
+            final CompletableFuture<T> done = new CompletableFuture<T>();
+
+            Task(Function<HashMap<String, String>, T> operation) {
+                this.operation = operation;
+            }
+
+            void run(HashMap<String, String> table) {
+                try {
+                    done.complete(operation.apply(table));
+                } catch (RuntimeException | Error e) {
+                    done.completeExceptionally(e);
+                }
+            }
+
+            void fail() {
+                done.completeExceptionally(new IllegalStateException("closed"));
+            }
+        }
+
+        private static final class Shard implements Runnable {
+            final MpscRing<Task<?>> ring = new MpscRing<Task<?>>(RING_CAPACITY);
+            final HashMap<String, String> table = new HashMap<String, String>(); // shard thread only
+            final AtomicLong peakDepth = new AtomicLong();
+            final Thread thread;
+            volatile boolean sleeping;
+            volatile boolean running = true;
+            volatile int size;
+            volatile long completed;
+
+            Shard(int index) {
+                thread = new Thread(this, "shard-" + index);
+                thread.setDaemon(true);
+            }
+
+            void submit(Task<?> task) {
+                while (!ring.offer(task)) {
+                    if (!running) {
+                        task.fail();
+                        return;
+                    }
+                    LockSupport.parkNanos(1000); // full: wait for the owner to catch up
+                }
+                long depth = ring.size();
+                long peak;
+                while (depth > (peak = peakDepth.get()) && !peakDepth.compareAndSet(peak, depth)) {
+                }
+                if (sleeping) {
+                    LockSupport.unpark(thread);
+                }
+                if (!running) {
+                    task.fail(); // closed after the offer: the drain may already be over
+                }
+            }
+
+            @Override
+            public void run() {
+                int idle = 0;
+                while (running) {
+                    Task<?> task = ring.poll();
+                    if (task == null) {
+                        if (++idle < SPINS_BEFORE_PARK) {
+                            Thread.yield();
+                            continue;
+                        }
+                        sleeping = true;
+                        if (ring.isEmpty() && running) {
+                            LockSupport.park(this);
+                        }
+                        sleeping = false;
+                        idle = 0;
+                        continue;
+                    }
+                    idle = 0;
+                    task.run(table);
+                    size = table.size();
+                    completed++; // single writer
+                }
+                // Closed: fail what is still queued so its callers do not wait forever. A producer
+                // that offers after this sees running == false and fails its own task.
+                while (!ring.isEmpty()) {
+                    Task<?> task = ring.poll();
+                    if (task == null) {
+                        Thread.yield(); // claimed slot, not published yet
+                    } else {
+                        task.fail();
+                    }
+                }
+            }
+        }
+
+        public ShardedStorageEngine(int shardCount) {
+            shards = new Shard[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new Shard(i);
+                shards[i].thread.start();
+            }
+        }
+
+        private Shard shardFor(String key) {
+            int h = key.hashCode();
+            return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+        }
+
+        private static <T> CompletableFuture<T> submit(Shard shard, Function<HashMap<String, String>, T> operation) {
+            Task<T> task = new Task<T>(operation);
+            if (shard.running) {
+                shard.submit(task);
+            } else {
+                task.fail();
+            }
+            return task.done;
+        }
+
+        private static <T> T await(CompletableFuture<T> result) {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause(); // e.g. from a compute remapping function
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public String get(String key) {
+            return await(submit(shardFor(key), table -> table.get(key)));
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return await(submit(shardFor(key), table -> table.put(key, value)));
+        }
+
+        @Override
+        public String remove(String key) {
+            return await(submit(shardFor(key), table -> table.remove(key)));
+        }
+
+        // The remapping runs on the shard's thread, with the shard to itself
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            return await(submit(shardFor(key), table -> table.compute(key, remapping)));
+        }
+
+        // One task per shard instead of one per key, and all shards work on the batch at once
+        @Override
+        public void putAll(Map<String, String> entries) {
+            Map<Shard, Map<String, String>> perShard = new HashMap<Shard, Map<String, String>>();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                perShard.computeIfAbsent(shardFor(entry.getKey()), shard -> new HashMap<String, String>())
+                        .put(entry.getKey(), entry.getValue());
+            }
+            List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+            for (Map.Entry<Shard, Map<String, String>> batch : perShard.entrySet()) {
+                results.add(submit(batch.getKey(), table -> {
+                    table.putAll(batch.getValue());
+                    return null;
+                }));
+            }
+            for (CompletableFuture<Void> result : results) {
+                await(result);
+            }
+        }
+
+        @Override
+        public long size() {
+            long size = 0;
+            for (Shard shard : shards) {
+                size += shard.size;
+            }
+            return size;
+        }
+
+        // Copies one shard at a time when the iteration reaches it, so the copy is about 1/N of the store
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+                private int nextShard;
+                private Iterator<Map.Entry<String, String>> current = Collections.<Map.Entry<String, String>>emptyList().iterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && nextShard < shards.length) {
+                        current = await(submit(shards[nextShard++], table -> {
+                            List<Map.Entry<String, String>> copy = new ArrayList<Map.Entry<String, String>>(table.size());
+                            for (Map.Entry<String, String> entry : table.entrySet()) {
+                                copy.add(new AbstractMap.SimpleImmutableEntry<String, String>(entry));
+                            }
+                            return copy;
+                        })).iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.next();
+                }
+            };
+        }
+
+        // depth (tasks waiting now), peak depth and completed tasks for each shard
+        public long[][] queueStats() {
+            long[][] stats = new long[shards.length][];
+            for (int i = 0; i < shards.length; i++) {
+                stats[i] = new long[] {shards[i].ring.size(), shards[i].peakDepth.get(), shards[i].completed};
+            }
+            return stats;
+        }
+
+        @Override
+        public void close() {
+            for (Shard shard : shards) {
+                shard.running = false;
+                LockSupport.unpark(shard.thread);
+            }
+        }
+    }
+
+    // Bounded multi-producer, single-consumer ring. Producers claim a slot by CAS on the tail and
+    // publish the element with an ordered store; the consumer clears the slot before moving the
+    // head on. A claimed but not yet published slot reads as empty until its producer finishes.
+    static final class MpscRing<E> {
+        private final AtomicReferenceArray<E> slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+
+        MpscRing(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+            slots = new AtomicReferenceArray<E>(size);
+            mask = size - 1;
+        }
+
+        boolean offer(E element) {
+            long t;
+            do {
+                t = tail.get();
+                if (t - head.get() > mask) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(t, t + 1));
+            slots.lazySet((int) t & mask, element);
+            return true;
+        }
+
+        // Consumer thread only
+        E poll() {
+            long h = head.get();
+            int index = (int) h & mask;
+            E element = slots.get(index);
+            if (element == null) {
+                return null;
+            }
+            slots.lazySet(index, null);
+            head.lazySet(h + 1);
+            return element;
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+
+        long size() {
+            return Math.max(0, tail.get() - head.get());
+        }
+    }
+
+    // Compact engine: keys and values live as UTF-8 records in 1 MB byte[] pages, found through
+    // open-addressing tables (linear probing) of long record references plus int hashes. An entry
+    // costs its record (two varint lengths + bytes) and about 16 bytes of table, instead of a CHM
+    // node and two Strings. The keyspace is split over segments, each with its own StampedLock:
+    // gets read optimistically and only fall back to the read lock if a writer got in the way.
+    // Growing a segment, or compacting one whose pages are mostly dead records, copies it into a
+    // new table and arena a few slots per write, so there is never a stop-the-world rehash.
+    public static class CompactStorageEngine implements StorageEngine {
+        private static final int PAGE_SIZE = 1 << 20;
+        private static final long EMPTY = 0;
+        private static final long TOMBSTONE = -1;
+        private static final int MIGRATE_STEP = 64; // old slots moved per write while a segment is migrating
+
+        private final Segment[] segments;
+        private final int segmentShift;
+
+        public CompactStorageEngine(int segmentCount) {
+            int count = Integer.highestOneBit(Math.max(1, segmentCount - 1) << 1);
+            segments = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                segments[i] = new Segment();
+            }
+            segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        }
+
+        private static int hash(String key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private Segment segmentFor(int hash) {
+            return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+        }
+
+        // Append-only pages; a record never spans pages, one larger than a page gets a page of its own
+        private static final class Arena {
+            byte[][] pages = new byte[4][];
+            int pageCount;
+            int offset = PAGE_SIZE;
+            long allocated;
+
+            long allocate(int length) {
+                if (pageCount == pages.length) {
+                    pages = Arrays.copyOf(pages, pageCount * 2);
+                }
+                if (length > PAGE_SIZE) {
+                    pages[pageCount] = new byte[length];
+                    allocated += length;
+                    offset = PAGE_SIZE; // the record owns this page, small records start a fresh one
+                    return reference(pageCount++, 0);
+                }
+                if (offset + length > PAGE_SIZE) {
+                    pages[pageCount++] = new byte[PAGE_SIZE];
+                    allocated += PAGE_SIZE;
+                    offset = 0;
+                }
+                long ref = reference(pageCount - 1, offset);
+                offset += length;
+                return ref;
+            }
+
+            private static long reference(int page, int offset) {
+                return (((long) page << 32) | offset) + 1; // never EMPTY or TOMBSTONE
+            }
+
+            byte[] page(long ref) {
+                return pages[(int) ((ref - 1) >>> 32)];
+            }
+
+            static int offset(long ref) {
+                return (int) (ref - 1);
+            }
+        }
+
+        private static final class Table {
+            final long[] refs;
+            final int[] hashes;
+            final Arena arena;
+            int used; // live + tombstones, for the load factor
+            int live;
+
+            Table(int capacity, Arena arena) {
+                refs = new long[capacity];
+                hashes = new int[capacity];
+                this.arena = arena;
+            }
+        }
+
+        // Record: [key length varint][value length varint][key][value]
+        private static int varintLength(int value) {
+            int length = 1;
+            while ((value >>>= 7) != 0) {
+                length++;
+            }
+            return length;
+        }
+
+        private static int writeVarint(byte[] page, int at, int value) {
+            while ((value & ~0x7F) != 0) {
+                page[at++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            page[at++] = (byte) value;
+            return at;
+        }
+
+        // Returns the value with the position after it in position[0]
+        private static int readVarint(byte[] page, int[] position) {
+            int at = position[0];
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = page[at++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+                if (shift > 28) {
+                    throw new IllegalStateException("Corrupt record length"); // a torn optimistic read
+                }
+            }
+            position[0] = at;
+            return value;
+        }
+
+        private static int recordLength(byte[] key, byte[] value) {
+            return varintLength(key.length) + varintLength(value.length) + key.length + value.length;
+        }
+
+        private static void writeRecord(Arena arena, long ref, byte[] key, byte[] value) {
+            byte[] page = arena.page(ref);
+            int at = writeVarint(page, Arena.offset(ref), key.length);
+            at = writeVarint(page, at, value.length);
+            System.arraycopy(key, 0, page, at, key.length);
+            System.arraycopy(value, 0, page, at + key.length, value.length);
+        }
+
+        private static final class Segment {
+            final StampedLock lock = new StampedLock();
+            Table table = new Table(16, new Arena());
+            Table old; // being migrated into table, null otherwise
+            int migrated; // next slot of old to move
+            long liveBytes; // record bytes of live entries
+            volatile int size;
+
+            // Index of key in t, or -1. The probe is bounded so a torn optimistic read can't spin forever.
+            int find(Table t, int hash, byte[] key) {
+                long[] refs = t.refs;
+                int mask = refs.length - 1;
+                int[] position = new int[1];
+                for (int probes = 0, i = hash & mask; probes < refs.length; probes++, i = (i + 1) & mask) {
+                    long ref = refs[i];
+                    if (ref == EMPTY) {
+                        return -1;
+                    }
+                    if (ref == TOMBSTONE || t.hashes[i] != hash) {
+                        continue;
+                    }
+                    byte[] page = t.arena.page(ref);
+                    position[0] = Arena.offset(ref);
+                    int keyLength = readVarint(page, position);
+                    readVarint(page, position);
+                    if (keyLength == key.length && rangeEquals(page, position[0], key)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            private static boolean rangeEquals(byte[] page, int at, byte[] key) {
+                if (at + key.length > page.length) {
+                    return false;
+                }
+                for (int i = 0; i < key.length; i++) {
+                    if (page[at + i] != key[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            static String value(Table t, int index) {
+                long ref = t.refs[index];
+                byte[] page = t.arena.page(ref);
+                int[] position = {Arena.offset(ref)};
+                int keyLength = readVarint(page, position);
+                int valueLength = readVarint(page, position);
+                return new String(page, position[0] + keyLength, valueLength, StandardCharsets.UTF_8);
+            }
+
+            static int recordLength(Table t, int index) {
+                long ref = t.refs[index];
+                byte[] page = t.arena.page(ref);
+                int[] position = {Arena.offset(ref)};
+                int keyLength = readVarint(page, position);
+                int valueLength = readVarint(page, position);
+                return position[0] - Arena.offset(ref) + keyLength + valueLength;
+            }
+
+            String get(int hash, byte[] key) {
+                Table current = table;
+                Table previous = old;
+                int i = find(current, hash, key);
+                if (i >= 0) {
+                    return value(current, i);
+                }
+                if (previous != null && (i = find(previous, hash, key)) >= 0) {
+                    return value(previous, i);
+                }
+                return null;
+            }
+
+            // Write lock held by the caller
+            String put(int hash, byte[] key, byte[] value) {
+                migrateStep();
+                int length = CompactStorageEngine.recordLength(key, value);
+                int i = find(table, hash, key);
+                String previous = null;
+                if (i >= 0) {
+                    previous = value(table, i);
+                    int oldLength = recordLength(table, i);
+                    liveBytes -= oldLength;
+                    if (length > oldLength) {
+                        table.refs[i] = table.arena.allocate(length);
+                    }
+                    writeRecord(table.arena, table.refs[i], key, value); // in place when it fits
+                    liveBytes += length;
+                    maybeMigrate();
+                    return previous;
+                }
+                if (old != null && (i = find(old, hash, key)) >= 0) {
+                    previous = value(old, i);
+                    liveBytes -= recordLength(old, i);
+                    old.refs[i] = TOMBSTONE;
+                    old.live--;
+                }
+                insert(table, hash, key, value, length);
+                liveBytes += length;
+                if (previous == null) {
+                    size++;
+                }
+                maybeMigrate();
+                return previous;
+            }
+
+            private void insert(Table t, int hash, byte[] key, byte[] value, int length) {
+                int mask = t.refs.length - 1;
+                int i = hash & mask;
+                while (t.refs[i] != EMPTY && t.refs[i] != TOMBSTONE) {
+                    i = (i + 1) & mask;
+                }
+                if (t.refs[i] == EMPTY) {
+                    t.used++;
+                }
+                long ref = t.arena.allocate(length);
+                writeRecord(t.arena, ref, key, value);
+                t.hashes[i] = hash;
+                t.refs[i] = ref;
+                t.live++;
+            }
+
+            // Write lock held by the caller
+            String remove(int hash, byte[] key) {
+                migrateStep();
+                Table t = table;
+                int i = find(t, hash, key);
+                if (i < 0 && old != null) {
+                    t = old;
+                    i = find(t, hash, key);
+                }
+                if (i < 0) {
+                    return null;
+                }
+                String previous = value(t, i);
+                liveBytes -= recordLength(t, i);
+                t.refs[i] = TOMBSTONE;
+                t.live--;
+                size--;
+                maybeMigrate();
+                return previous;
+            }
+
+            // Starts moving into a fresh table and arena when the table is 3/4 full (growing it if
+            // most of that is live) or when dead records take up more than half the arena
+            private void maybeMigrate() {
+                boolean full = table.used * 4L >= table.refs.length * 3L;
+                boolean wasteful = table.arena.allocated > 2 * PAGE_SIZE && liveBytes * 2 < table.arena.allocated;
+                if (!full && !wasteful) {
+                    return;
+                }
+                if (old != null) {
+                    finishMigration(); // a second resize before the first finished: complete the first now
+                }
+                int capacity = table.refs.length;
+                if (table.live * 2L >= capacity) {
+                    capacity *= 2;
+                }
+                old = table;
+                migrated = 0;
+                table = new Table(capacity, new Arena());
+            }
+
+            private void migrateStep() {
+                for (int n = 0; n < MIGRATE_STEP && old != null; n++) {
+                    migrateSlot();
+                }
+            }
+
+            private void finishMigration() {
+                while (old != null) {
+                    migrateSlot();
+                }
+            }
+
+            private void migrateSlot() {
+                long ref = old.refs[migrated];
+                if (ref != EMPTY && ref != TOMBSTONE) {
+                    byte[] page = old.arena.page(ref);
+                    int[] position = {Arena.offset(ref)};
+                    int keyLength = readVarint(page, position);
+                    int valueLength = readVarint(page, position);
+                    int length = position[0] - Arena.offset(ref) + keyLength + valueLength;
+                    int mask = table.refs.length - 1;
+                    int i = old.hashes[migrated] & mask;
+                    while (table.refs[i] != EMPTY && table.refs[i] != TOMBSTONE) {
+                        i = (i + 1) & mask;
+                    }
+                    if (table.refs[i] == EMPTY) {
+                        table.used++;
+                    }
+                    long copy = table.arena.allocate(length);
+                    System.arraycopy(page, Arena.offset(ref), table.arena.page(copy), Arena.offset(copy), length);
+                    table.hashes[i] = old.hashes[migrated];
+                    table.refs[i] = copy;
+                    table.live++;
+                    old.refs[migrated] = TOMBSTONE; // keeps probe chains intact for lookups still using old
+                    old.live--;
+                }
+                if (++migrated == old.refs.length) {
+                    old = null;
+                }
+            }
+
+            // Entries copied out under the read lock, for iteration
+            List<Map.Entry<String, String>> entries() {
+                long stamp = lock.readLock();
+                try {
+                    List<Map.Entry<String, String>> copy = new ArrayList<Map.Entry<String, String>>(size);
+                    for (Table t : new Table[] {table, old}) {
+                        for (int i = 0; t != null && i < t.refs.length; i++) {
+                            long ref = t.refs[i];
+                            if (ref == EMPTY || ref == TOMBSTONE) {
+                                continue;
+                            }
+                            byte[] page = t.arena.page(ref);
+                            int[] position = {Arena.offset(ref)};
+                            int keyLength = readVarint(page, position);
+                            readVarint(page, position);
+                            copy.add(new AbstractMap.SimpleImmutableEntry<String, String>(
+                                    new String(page, position[0], keyLength, StandardCharsets.UTF_8), value(t, i)));
+                        }
+                    }
+                    return copy;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+        }
+
+        @Override
+        public String get(String key) {
+            int hash = hash(key);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            Segment segment = segmentFor(hash);
+            long stamp = segment.lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    String value = segment.get(hash, keyBytes);
+                    if (segment.lock.validate(stamp)) {
+                        return value;
+                    }
+                } catch (RuntimeException e) {
+                    // a writer moved things underneath the optimistic read, retry under the lock
+                }
+            }
+            stamp = segment.lock.readLock();
+            try {
+                return segment.get(hash, keyBytes);
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public String put(String key, String value) {
+            int hash = hash(key);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            Segment segment = segmentFor(hash);
+            long stamp = segment.lock.writeLock();
+            try {
+                return segment.put(hash, keyBytes, valueBytes);
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public String remove(String key) {
+            int hash = hash(key);
+            Segment segment = segmentFor(hash);
+            long stamp = segment.lock.writeLock();
+            try {
+                return segment.remove(hash, key.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+
+        // The remapping runs under the segment's write lock
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            int hash = hash(key);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            Segment segment = segmentFor(hash);
+            long stamp = segment.lock.writeLock();
+            try {
+                String current = segment.get(hash, keyBytes);
+                String updated = remapping.apply(key, current);
+                if (updated == null) {
+                    if (current != null) {
+                        segment.remove(hash, keyBytes);
+                    }
+                } else if (!updated.equals(current)) {
+                    segment.put(hash, keyBytes, updated.getBytes(StandardCharsets.UTF_8));
+                }
+                return updated;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+
+        @Override
+        public long size() {
+            long size = 0;
+            for (Segment segment : segments) {
+                size += segment.size;
+            }
+            return size;
+        }
+
+        // Copies one segment at a time as the iteration reaches it
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+                private int nextSegment;
+                private Iterator<Map.Entry<String, String>> current = Collections.<Map.Entry<String, String>>emptyList().iterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!current.hasNext() && nextSegment < segments.length) {
+                        current = segments[nextSegment++].entries().iterator();
+                    }
+                    return current.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.next();
+                }
+            };
+        }
+
+        @Override
+        public String memoryReport() {
+            long slots = 0;
+            long arena = 0;
+            long live = 0;
+            int migrating = 0;
+            for (Segment segment : segments) {
+                long stamp = segment.lock.readLock();
+                try {
+                    for (Table t : new Table[] {segment.table, segment.old}) {
+                        if (t != null) {
+                            slots += t.refs.length;
+                            arena += t.arena.allocated;
+                        }
+                    }
+                    live += segment.liveBytes;
+                    migrating += segment.old != null ? 1 : 0;
+                } finally {
+                    segment.lock.unlockRead(stamp);
+                }
+            }
+            long entries = size();
+            long index = slots * 12; // long ref + int hash per slot
+            return "MEMORY compact entries=" + entries + " segments=" + segments.length + " migrating=" + migrating
+                    + " index_bytes=" + index + " arena_bytes=" + arena + " record_bytes=" + live
+                    + " dead_bytes=" + (arena - live)
+                    + " bytes_per_entry=" + (entries == 0 ? 0 : (index + arena) / entries);
+        }
+    }
+
+    // --storage=chm | log[:DIR] | offheap | sharded[:N] | compact
+    private static StorageEngine createStorageEngine(String spec) throws IOException {
+        int colon = spec.indexOf(':');
+        String type = (colon < 0 ? spec : spec.substring(0, colon)).toLowerCase();
+        String argument = colon < 0 ? null : spec.substring(colon + 1);
+        switch (type) {
+            case "chm":
+            case "memory":
+                return new ConcurrentHashMapStorageEngine();
+            case "log": {
+                // a segment is one MappedByteBuffer, so it has to stay under 2 GB
+                long segmentMb = Long.parseLong(getOption("segment-mb", "64"));
+                if (segmentMb < 1 || segmentMb * 1024 * 1024 > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("--segment-mb must be between 1 and " + (Integer.MAX_VALUE >> 20) + ", got " + segmentMb);
+                }
+                return new LogStructuredStorageEngine(new File(argument != null ? argument : "kvstore-data"), (int) (segmentMb * 1024 * 1024));
+            }
+            case "offheap":
+                return new OffHeapStorageEngine();
+            case "compact":
+                return new CompactStorageEngine(4 * Runtime.getRuntime().availableProcessors());
+            case "sharded":
+                shardedEngine = new ShardedStorageEngine(argument != null ? Integer.parseInt(argument) : Runtime.getRuntime().availableProcessors());
+                return shardedEngine;
+            default:
+                throw new IllegalArgumentException("Unknown storage engine '" + spec + "'. Use chm, log[:DIR], offheap, sharded[:N] or compact.");
+        }
+    }
+
+    // Off-heap engine: values are stored as UTF-8 in size-classed slabs of direct memory and the
+    // on-heap map only holds a packed long handle per key:
+    //   [size class:6][slab:22][slot:16][generation:20]
+    // Each slot is [length:4][bytes]. Freeing a slot bumps its generation, so a reader that raced with
+    // an overwrite or delete notices the handle went stale and retries instead of returning other data.
+    public static class OffHeapStorageEngine implements StorageEngine {
+        private static final int SLAB_SIZE = 1024 * 1024;
+        private static final int SLOT_HEADER = 4;
+        private static final int GENERATION_MASK = (1 << 20) - 1;
+
+        private final ConcurrentHashMap<String, Long> handles = new ConcurrentHashMap<String, Long>();
+        private final SizeClass[] classes;
+
+        private static final class Slab {
+            final ByteBuffer memory;
+            final AtomicIntegerArray generations;
+
+            Slab(int size, int slots) {
+                memory = ByteBuffer.allocateDirect(size);
+                generations = new AtomicIntegerArray(slots);
+            }
+        }
+
+        // One size class; allocation and free only lock their own class
+        private static final class SizeClass {
+            final int index;
+            final int slotSize;
+            final int slotsPerSlab;
+            volatile Slab[] slabs = new Slab[0];
+            int[] freeSlots = new int[64]; // (slab << 16) | slot
+            int freeCount;
+            int nextSlot; // bump pointer into the newest slab
+            long usedSlots;
+            long requestedBytes;
+
+            SizeClass(int index, int slotSize) {
+                this.index = index;
+                this.slotSize = slotSize;
+                this.slotsPerSlab = Math.max(1, SLAB_SIZE / slotSize);
+            }
+
+            synchronized long allocate(int length) {
+                int ref;
+                if (freeCount > 0) {
+                    ref = freeSlots[--freeCount];
+                } else {
+                    if (slabs.length == 0 || nextSlot == slotsPerSlab) {
+                        if (slabs.length == (1 << 22)) {
+                            throw new IllegalStateException("Off-heap size class " + slotSize + " is full");
+                        }
+                        Slab[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+                        grown[slabs.length] = new Slab(slotsPerSlab * slotSize, slotsPerSlab);
+                        slabs = grown;
+                        nextSlot = 0;
+                    }
+                    ref = ((slabs.length - 1) << 16) | nextSlot++;
+                }
+                usedSlots++;
+                requestedBytes += length;
+                int slab = ref >>> 16;
+                int slot = ref & 0xFFFF;
+                int generation = slabs[slab].generations.get(slot) & GENERATION_MASK;
+                return ((long) index << 58) | ((long) slab << 36) | ((long) slot << 20) | generation;
+            }
+
+            synchronized void free(int slab, int slot, int length) {
+                slabs[slab].generations.incrementAndGet(slot); // invalidates outstanding handles first
+                if (freeCount == freeSlots.length) {
+                    freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+                }
+                freeSlots[freeCount++] = (slab << 16) | slot;
+                usedSlots--;
+                requestedBytes -= length;
+            }
+        }
+
+        public OffHeapStorageEngine() {
+            // memcached-style classes growing by 1.25x up to one slab, then doubling up to 64 MB values
+            List<SizeClass> sizes = new ArrayList<SizeClass>();
+            int size = 16;
+            while (size <= SLAB_SIZE) {
+                sizes.add(new SizeClass(sizes.size(), size));
+                size = Math.max(size + 8, (int) (size * 1.25) + 7 & ~7);
+            }
+            for (size = 2 * SLAB_SIZE; size <= BINARY_MAX_FRAME + SLOT_HEADER; size *= 2) {
+                sizes.add(new SizeClass(sizes.size(), size));
+            }
+            sizes.add(new SizeClass(sizes.size(), BINARY_MAX_FRAME + 2 * SLOT_HEADER));
+            classes = sizes.toArray(new SizeClass[0]);
+        }
+
+        private SizeClass classFor(int slotBytes) {
+            for (SizeClass sizeClass : classes) {
+                if (sizeClass.slotSize >= slotBytes) {
+                    return sizeClass;
+                }
+            }
+            throw new IllegalArgumentException("Value of " + slotBytes + " bytes is too large for the off-heap store");
+        }
+
+        private long store(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            SizeClass sizeClass = classFor(SLOT_HEADER + bytes.length);
+            long handle = sizeClass.allocate(bytes.length);
+            ByteBuffer slot = sizeClass.slabs[slab(handle)].memory.duplicate();
+            slot.position(slot(handle) * sizeClass.slotSize);
+            slot.putInt(bytes.length).put(bytes);
+            return handle;
+        }
+
+        // Returns null if the slot was freed (and possibly reused) while it was being read
+        private String load(long handle) {
+            SizeClass sizeClass = classes[(int) (handle >>> 58)];
+            Slab slab = sizeClass.slabs[slab(handle)];
+            int slot = slot(handle);
+            int generation = (int) handle & GENERATION_MASK;
+            if ((slab.generations.get(slot) & GENERATION_MASK) != generation) {
+                return null;
+            }
+            byte[] bytes;
+            try {
+                ByteBuffer view = slab.memory.duplicate();
+                view.position(slot * sizeClass.slotSize);
+                int length = view.getInt();
+                if (length < 0 || length > sizeClass.slotSize - SLOT_HEADER) {
+                    return null;
+                }
+                bytes = new byte[length];
+                view.get(bytes);
+            } catch (RuntimeException e) {
+                return null;
+            }
+            // compareAndSet instead of get: its volatile-write half keeps the copy above from being reordered after the check
+            int current = slab.generations.get(slot);
+            if ((current & GENERATION_MASK) != generation || !slab.generations.compareAndSet(slot, current, current)) {
+                return null;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void release(Long handle) {
+            if (handle == null) {
+                return;
+            }
+            SizeClass sizeClass = classes[(int) (handle >>> 58)];
+            int slab = slab(handle);
+            int slot = slot(handle);
+            int length = sizeClass.slabs[slab].memory.getInt(slot * sizeClass.slotSize);
+            sizeClass.free(slab, slot, length);
+        }
+
+        private static int slab(long handle) {
+            return (int) (handle >>> 36) & ((1 << 22) - 1);
+        }
+
+        private static int slot(long handle) {
+            return (int) (handle >>> 20) & 0xFFFF;
+        }
+
+        @Override
+        public String get(String key) {
+            while (true) {
+                Long handle = handles.get(key);
+                if (handle == null) {
+                    return null;
+                }
+                String value = load(handle);
+                if (value != null) {
+                    return value;
+                }
+                // Overwritten or deleted while we were reading, look the key up again
+            }
+        }
+
+        @Override
+        public String put(String key, String value) {
+            Long old = handles.put(key, store(value));
+            if (old == null) {
+                return null;
+            }
+            String previous = load(old);
+            release(old);
+            return previous;
+        }
+
+        @Override
+        public String remove(String key) {
+            Long old = handles.remove(key);
+            if (old == null) {
+                return null;
+            }
+            String previous = load(old);
+            release(old);
+            return previous;
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            final Long[] replaced = new Long[1];
+            final String[] result = new String[1];
+            handles.compute(key, (k, handle) -> {
+                // The key is locked here, so its slot cannot be freed underneath this read
+                String current = handle != null ? load(handle) : null;
+                String updated = remapping.apply(k, current);
+                result[0] = updated;
+                if (updated == current) {
+                    return handle;
+                }
+                replaced[0] = handle;
+                return updated != null ? store(updated) : null;
+            });
+            release(replaced[0]);
+            return result[0];
+        }
+
+        @Override
+        public long size() {
+            return handles.mappingCount();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            final Iterator<String> keys = handles.keySet().iterator();
+            return new Iterator<Map.Entry<String, String>>() {
+                private Map.Entry<String, String> next = advance();
+
+                private Map.Entry<String, String> advance() {
+                    while (keys.hasNext()) {
+                        String key = keys.next();
+                        String value = get(key);
+                        if (value != null) {
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, String> current = next;
+                    next = advance();
+                    return current;
+                }
+            };
+        }
+
+        // Bytes used and internal fragmentation (slot bytes not holding value data) per size class
+        @Override
+        public String memoryReport() {
+            StringBuilder sb = new StringBuilder();
+            long totalSlabBytes = 0;
+            long totalUsedBytes = 0;
+            long totalRequestedBytes = 0;
+            for (SizeClass sizeClass : classes) {
+                long slabBytes;
+                long usedBytes;
+                long requestedBytes;
+                synchronized (sizeClass) {
+                    slabBytes = (long) sizeClass.slabs.length * sizeClass.slotsPerSlab * sizeClass.slotSize;
+                    usedBytes = sizeClass.usedSlots * sizeClass.slotSize;
+                    requestedBytes = sizeClass.requestedBytes;
+                }
+                if (slabBytes == 0) {
+                    continue;
+                }
+                totalSlabBytes += slabBytes;
+                totalUsedBytes += usedBytes;
+                totalRequestedBytes += requestedBytes;
+                sb.append("class=").append(sizeClass.slotSize)
+                        .append(" slabs=").append(sizeClass.slabs.length)
+                        .append(" used=").append(usedBytes)
+                        .append(" data=").append(requestedBytes)
+                        .append(" fragmentation=").append(percent(usedBytes - requestedBytes, usedBytes))
+                        .append(" free=").append(percent(slabBytes - usedBytes, slabBytes)).append("; ");
+            }
+            sb.insert(0, "OFFHEAP allocated=" + totalSlabBytes + " used=" + totalUsedBytes + " data=" + totalRequestedBytes
+                    + " fragmentation=" + percent(totalUsedBytes - totalRequestedBytes, totalUsedBytes) + "; ");
+            return sb.toString();
+        }
+
+        private static String percent(long part, long whole) {
+            return whole == 0 ? "0.0%" : String.format("%.1f%%", 100.0 * part / whole);
+        }
+    }
+
+    // Bitcask-style log-structured engine. Values live in append-only segment files that are read and
+    // written through MappedByteBuffers; the heap only holds the keydir, which maps each key to a
+    // packed (segment id, offset) of its latest record. Record layout (big-endian):
+    //   [crc32:4][key length:4][value length:4, -1 for a delete][key][value]
+    // A background thread rewrites the live records of mostly-dead segments and deletes the old files.
+    public static class LogStructuredStorageEngine implements StorageEngine {
+        private static final int RECORD_HEADER = 12;
+        private static final int TOMBSTONE = -1;
+        private static final double COMPACTION_DEAD_RATIO = 0.5;
+
+        private final File dir;
+        private final int segmentSize;
+        private final ConcurrentHashMap<String, Long> keydir = new ConcurrentHashMap<String, Long>();
+        private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+        private final Object appendLock = new Object();
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer scratch = ByteBuffer.allocate(4096);
+        private volatile Segment active;
+        private final ScheduledExecutorService compactor;
+
+        private static final class Segment {
+            final int id;
+            final File file;
+            final FileChannel channel;
+            final MappedByteBuffer data;
+            final ByteBuffer writeView; // only touched under appendLock
+            final AtomicLong deadBytes = new AtomicLong();
+            volatile int writePosition;
+
+            Segment(int id, File file, int mapSize) throws IOException {
+                this.id = id;
+                this.file = file;
+                this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.data = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mapSize, channel.size()));
+                this.writeView = data.duplicate();
+            }
+        }
+
+        public LogStructuredStorageEngine(File dir, int segmentSize) throws IOException {
+            this.dir = dir;
+            this.segmentSize = segmentSize;
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create data directory " + dir);
+            }
+            File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".data"));
+            Arrays.sort(files);
+            for (File file : files) {
+                int id = Integer.parseInt(file.getName().substring("segment-".length(), file.getName().length() - ".data".length()));
+                Segment segment = new Segment(id, file, 0);
+                segments.put(id, segment);
+                load(segment);
+                active = segment;
+            }
+            if (active == null || active.data.capacity() < segmentSize) {
+                active = newSegment(active == null ? 0 : active.id + 1);
+            }
+            Log.info("Log storage: " + keydir.size() + " keys in " + segments.size() + " segments under " + dir);
+
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "log-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(this::compact, 5, 5, TimeUnit.SECONDS);
+        }
+
+        // Rebuilds the keydir from one segment; stops at the first zeroed or corrupt record
+        private void load(Segment segment) {
+            ByteBuffer view = segment.data.duplicate();
+            int position = 0;
+            while (position + RECORD_HEADER <= view.capacity()) {
+                int keyLength = view.getInt(position + 4);
+                int valueLength = view.getInt(position + 8);
+                int recordLength = RECORD_HEADER + keyLength + Math.max(valueLength, 0);
+                if (keyLength < 0 || valueLength < TOMBSTONE || position + recordLength > view.capacity()
+                        || view.getInt(position) != checksum(view, position, recordLength)) {
+                    break;
+                }
+                String key = readString(view, position + RECORD_HEADER, keyLength);
+                Long previous = valueLength == TOMBSTONE ? keydir.remove(key) : keydir.put(key, location(segment.id, position));
+                markDead(previous);
+                if (valueLength == TOMBSTONE) {
+                    segment.deadBytes.addAndGet(recordLength);
+                }
+                position += recordLength;
+            }
+            segment.writePosition = position;
+        }
+
+        private Segment newSegment(int id) throws IOException {
+            Segment segment = new Segment(id, new File(dir, String.format("segment-%08d.data", id)), segmentSize);
+            segments.put(id, segment);
+            return segment;
+        }
+
+        private static long location(int segmentId, int offset) {
+            return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+        }
+
+        private int checksum(ByteBuffer view, int position, int recordLength) {
+            ByteBuffer record = view.duplicate();
+            record.limit(position + recordLength).position(position + 4);
+            CRC32 checksum = new CRC32();
+            byte[] chunk = new byte[Math.min(recordLength, 8192)];
+            while (record.hasRemaining()) {
+                int n = Math.min(chunk.length, record.remaining());
+                record.get(chunk, 0, n);
+                checksum.update(chunk, 0, n);
+            }
+            return (int) checksum.getValue();
+        }
+
+        private static String readString(ByteBuffer view, int position, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer source = view.duplicate();
+            source.position(position);
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void markDead(Long location) {
+            if (location == null) {
+                return;
+            }
+            Segment segment = segments.get((int) (location >>> 32));
+            if (segment != null) {
+                int offset = (int) (long) location;
+                segment.deadBytes.addAndGet(RECORD_HEADER + segment.data.getInt(offset + 4) + segment.data.getInt(offset + 8));
+            }
+        }
+
+        // Reads the value at a keydir location, or returns null if compaction already removed its segment
+        private String read(long location) {
+            Segment segment = segments.get((int) (location >>> 32));
+            if (segment == null) {
+                return null;
+            }
+            int offset = (int) location;
+            int keyLength = segment.data.getInt(offset + 4);
+            return readString(segment.data, offset + RECORD_HEADER + keyLength, segment.data.getInt(offset + 8));
+        }
+
+        // Appends a record to the active segment and returns its location
+        private long append(String key, String value) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+            int recordLength = RECORD_HEADER + keyBytes.length + (valueBytes != null ? valueBytes.length : 0);
+            synchronized (appendLock) {
+                if (scratch.capacity() < recordLength) {
+                    scratch = ByteBuffer.allocate(Math.max(recordLength, 2 * scratch.capacity()));
+                }
+                scratch.clear();
+                scratch.putInt(0).putInt(keyBytes.length).putInt(valueBytes != null ? valueBytes.length : TOMBSTONE).put(keyBytes);
+                if (valueBytes != null) {
+                    scratch.put(valueBytes);
+                }
+                crc.reset();
+                crc.update(scratch.array(), 4, recordLength - 4);
+                scratch.putInt(0, (int) crc.getValue());
+                scratch.flip();
+                return appendRecord(scratch);
+            }
+        }
+
+        // Caller holds appendLock; record is a complete, checksummed record
+        private long appendRecord(ByteBuffer record) {
+            int recordLength = record.remaining();
+            if (recordLength > segmentSize) {
+                throw new IllegalArgumentException("Record of " + recordLength + " bytes does not fit in a segment");
+            }
+            Segment segment = active;
+            if (segment.writePosition + recordLength > segment.data.capacity()) {
+                try {
+                    segment = newSegment(segment.id + 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot create segment", e);
+                }
+                active = segment;
+            }
+            boolean tombstone = record.getInt(record.position() + 8) == TOMBSTONE;
+            int offset = segment.writePosition;
+            segment.writeView.position(offset);
+            segment.writeView.put(record);
+            segment.writePosition = offset + recordLength;
+            if (tombstone) {
+                segment.deadBytes.addAndGet(recordLength); // only needed until older segments are compacted
+            }
+            return location(segment.id, offset);
+        }
+
+        @Override
+        public String get(String key) {
+            while (true) {
+                Long location = keydir.get(key);
+                if (location == null) {
+                    return null;
+                }
+                String value = read(location);
+                if (value != null) {
+                    return value;
+                }
+                // The segment was compacted after the lookup; the keydir already points at the moved copy
+            }
+        }
+
+        @Override
+        public String put(String key, String value) {
+            final String[] previous = new String[1];
+            keydir.compute(key, (k, location) -> {
+                if (location != null) {
+                    previous[0] = read(location);
+                    markDead(location);
+                }
+                return append(k, value);
+            });
+            return previous[0];
+        }
+
+        @Override
+        public String remove(String key) {
+            final String[] previous = new String[1];
+            keydir.computeIfPresent(key, (k, location) -> {
+                previous[0] = read(location);
+                markDead(location);
+                append(k, null);
+                return null;
+            });
+            return previous[0];
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            final String[] result = new String[1];
+            keydir.compute(key, (k, location) -> {
+                String current = location != null ? read(location) : null;
+                String updated = remapping.apply(k, current);
+                result[0] = updated;
+                if (updated == current) {
+                    return location;
+                }
+                markDead(location);
+                if (updated == null) {
+                    append(k, null);
+                    return null;
+                }
+                return append(k, updated);
+            });
+            return result[0];
+        }
+
+        @Override
+        public long size() {
+            return keydir.mappingCount();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            final Iterator<Map.Entry<String, Long>> locations = keydir.entrySet().iterator();
+            return new Iterator<Map.Entry<String, String>>() {
+                private Map.Entry<String, String> next = advance();
+
+                private Map.Entry<String, String> advance() {
+                    while (locations.hasNext()) {
+                        Map.Entry<String, Long> entry = locations.next();
+                        String value = read(entry.getValue());
+                        if (value == null) {
+                            value = get(entry.getKey()); // segment compacted away meanwhile
+                        }
+                        if (value != null) {
+                            return new AbstractMap.SimpleImmutableEntry<String, String>(entry.getKey(), value);
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, String> current = next;
+                    next = advance();
+                    return current;
+                }
+            };
+        }
+
+        // Rewrites the live records of immutable segments that are mostly dead, then deletes them.
+        // Runs on the compactor every 5 seconds; tests call it directly, hence synchronized
+        synchronized void compact() {
+            try {
+                for (Segment segment : new ArrayList<Segment>(segments.values())) {
+                    if (segment != active && segment.writePosition > 0
+                            && segment.deadBytes.get() >= COMPACTION_DEAD_RATIO * segment.writePosition) {
+                        compact(segment);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.error("Log compaction failed: " + e.getMessage());
+            }
+        }
+
+        private void compact(Segment segment) {
+            boolean hasOlderSegments = false;
+            for (Integer id : segments.keySet()) {
+                hasOlderSegments |= id < segment.id;
+            }
+            ByteBuffer view = segment.data.duplicate();
+            int position = 0;
+            while (position < segment.writePosition) {
+                int keyLength = view.getInt(position + 4);
+                int valueLength = view.getInt(position + 8);
+                int recordLength = RECORD_HEADER + keyLength + Math.max(valueLength, 0);
+                ByteBuffer record = view.duplicate();
+                record.limit(position + recordLength).position(position);
+                String key = readString(view, position + RECORD_HEADER, keyLength);
+                if (valueLength != TOMBSTONE) {
+                    long location = location(segment.id, position);
+                    keydir.computeIfPresent(key, (k, current) -> {
+                        if (current != location) {
+                            return current;
+                        }
+                        synchronized (appendLock) {
+                            return appendRecord(record);
+                        }
+                    });
+                } else if (hasOlderSegments) {
+                    // An older segment may still hold a value this delete has to keep shadowing
+                    keydir.compute(key, (k, current) -> {
+                        if (current == null) {
+                            synchronized (appendLock) {
+                                appendRecord(record);
+                            }
+                        }
+                        return current;
+                    });
+                }
+                position += recordLength;
+            }
+            segments.remove(segment.id);
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing segment " + segment.file + ": " + e.getMessage());
+            }
+            if (!segment.file.delete()) {
+                Log.warn("Could not delete compacted segment " + segment.file);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (appendLock) {
+                for (Segment segment : segments.values()) {
+                    segment.data.force();
+                    segment.channel.close();
+                }
+            }
+        }
+    }
+
+    // Base class for engines that wrap another engine and intercept some of its operations
+    public abstract static class ForwardingStorageEngine implements StorageEngine {
+        protected final StorageEngine delegate;
+
+        protected ForwardingStorageEngine(StorageEngine delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String get(String key) {
+            return delegate.get(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return delegate.put(key, value);
+        }
+
+        @Override
+        public String remove(String key) {
+            return delegate.remove(key);
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            return delegate.compute(key, remapping);
+        }
+
+        @Override
+        public void putAll(Map<String, String> entries) {
+            delegate.putAll(entries);
+        }
+
+        @Override
+        public long size() {
+            return delegate.size();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return delegate.iterator();
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, String> action) {
+            delegate.forEach(action);
+        }
+
+        @Override
+        public String memoryReport() {
+            return delegate.memoryReport();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    // Logs every change to a write-ahead log before acknowledging it. The log append happens inside
+    // the wrapped engine's per-key compute, so the log order of each key matches the order its
+    // changes were applied in; the wait for durability happens after the key is released.
+    public static class DurableStorageEngine extends ForwardingStorageEngine {
+        private final WriteAheadLog wal;
+
+        public DurableStorageEngine(StorageEngine delegate, WriteAheadLog wal) {
+            super(delegate);
+            this.wal = wal;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            final String[] previous = new String[1];
+            final long[] ticket = new long[1];
+            delegate.compute(key, (k, current) -> {
+                previous[0] = current;
+                ticket[0] = wal.append(WriteAheadLog.PUT, k, value);
+                return value;
+            });
+            wal.awaitDurable(ticket[0]);
+            return previous[0];
+        }
+
+        @Override
+        public String remove(String key) {
+            final String[] previous = new String[1];
+            final long[] ticket = new long[1];
+            delegate.compute(key, (k, current) -> {
+                previous[0] = current;
+                if (current != null) {
+                    ticket[0] = wal.append(WriteAheadLog.DEL, k, null);
+                }
+                return null;
+            });
+            wal.awaitDurable(ticket[0]);
+            return previous[0];
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            final long[] ticket = new long[1];
+            String result = delegate.compute(key, (k, current) -> {
+                String updated = remapping.apply(k, current);
+                if (updated != current) {
+                    ticket[0] = updated != null ? wal.append(WriteAheadLog.PUT, k, updated) : wal.append(WriteAheadLog.DEL, k, null);
+                }
+                return updated;
+            });
+            wal.awaitDurable(ticket[0]);
+            return result;
+        }
+
+        // One durability wait for the whole batch instead of one per key
+        @Override
+        public void putAll(Map<String, String> entries) {
+            long last = 0;
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                final long[] ticket = new long[1];
+                delegate.compute(entry.getKey(), (k, current) -> {
+                    ticket[0] = wal.append(WriteAheadLog.PUT, k, entry.getValue());
+                    return entry.getValue();
+                });
+                last = ticket[0];
+            }
+            wal.awaitDurable(last);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                wal.close();
+            } finally {
+                delegate.close();
+            }
+        }
+    }
+
+    // Keeps running totals of what the store holds so stats and getlen never have to walk it.
+    // Sits directly on the base engine, so writes coming through the WAL layer are counted too.
+    public static class MeteredStorageEngine extends ForwardingStorageEngine {
+        private final LongAdder dataBytes = new LongAdder(); // UTF-8 key + value bytes
+        private final LongAdder listingChars = new LongAdder(); // length of the untrimmed store listing, "key=value; " per entry
+
+        public MeteredStorageEngine(StorageEngine delegate) {
+            super(delegate);
+            // One pass over whatever the engine recovered from disk, then incremental from here on
+            delegate.forEach((key, value) -> account(key, value, 1));
+        }
+
+        private void account(String key, String value, int sign) {
+            dataBytes.add(sign * (utf8Length(key) + utf8Length(value)));
+            listingChars.add(sign * (key.length() + value.length() + 3));
+        }
+
+        private static long utf8Length(String s) {
+            long length = s.length();
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // surrogate pairs are 4 bytes for 2 chars
+                    length += c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+                }
+            }
+            return length;
+        }
+
+        public long dataBytes() {
+            return dataBytes.sum();
+        }
+
+        public long listingChars() {
+            return listingChars.sum();
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String previous = delegate.put(key, value);
+            if (previous != null) {
+                account(key, previous, -1);
+            }
+            account(key, value, 1);
+            return previous;
+        }
+
+        @Override
+        public String remove(String key) {
+            String previous = delegate.remove(key);
+            if (previous != null) {
+                account(key, previous, -1);
+            }
+            return previous;
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            final String[] before = new String[1];
+            String result = delegate.compute(key, (k, current) -> {
+                before[0] = current;
+                return remapping.apply(k, current);
+            });
+            if (before[0] != null) {
+                account(key, before[0], -1);
+            }
+            if (result != null) {
+                account(key, result, 1);
+            }
+            return result;
+        }
+
+        @Override
+        public void putAll(Map<String, String> entries) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // Cache mode: per-key TTLs and a memory limit. Deadlines live in a hierarchical timer wheel
+    // driven by one expiry thread, and reads also drop an expired key they run into. When the data
+    // size passes maxBytes, the writing thread evicts the least recently used of a few randomly
+    // sampled keys until it is back under the limit. A get only stamps its key's access time, so
+    // reads take no lock beyond the engine's own. With a WAL, each new deadline is logged as an
+    // EXPIRE record (wall-clock millis) right after the write it belongs to, and snapshots carry
+    // deadlines() too, so TTLs survive a restart.
+    // Metadata changes run inside the delegate's compute for the key, so they are atomic with the
+    // write while no meta lock is held across the delegate (or the WAL fsync behind it). A key has
+    // at most one pending timer, which is cancelled when its TTL is replaced or the key goes away.
+    public static class CacheStorageEngine extends ForwardingStorageEngine {
+        private final ConcurrentHashMap<String, EntryMeta> meta = new ConcurrentHashMap<String, EntryMeta>();
+        private final TimerWheel wheel;
+        private final ScheduledExecutorService expiry;
+        private final long startNanos = System.nanoTime();
+        private final long maxBytes;
+        private final LongSupplier usedBytes;
+        private final int samples;
+        private final LongAdder expired = new LongAdder();
+        private final LongAdder evicted = new LongAdder();
+        private final WriteAheadLog expiryLog; // null without --wal
+
+        private static final class EntryMeta {
+            final long expiresAt; // engine-relative millis, 0 = never
+            final TimerWheel.Timer timer; // null without a TTL
+            volatile long accessedAt; // System.nanoTime()
+
+            EntryMeta(long expiresAt, TimerWheel.Timer timer, long accessedAt) {
+                this.expiresAt = expiresAt;
+                this.timer = timer;
+                this.accessedAt = accessedAt;
+            }
+
+            boolean expired(long now) {
+                return expiresAt != 0 && expiresAt <= now;
+            }
+        }
+
+        // maxBytes <= 0 means no limit; usedBytes reports the current data size. deadlines holds the
+        // wall-clock expiry of restored keys (from the snapshot and WAL), expiryLog is the WAL or null.
+        public CacheStorageEngine(StorageEngine delegate, long maxBytes, LongSupplier usedBytes, int samples,
+                                  Map<String, Long> deadlines, WriteAheadLog expiryLog) {
+            super(delegate);
+            this.maxBytes = maxBytes;
+            this.usedBytes = usedBytes;
+            this.samples = samples;
+            this.expiryLog = expiryLog;
+            wheel = new TimerWheel(10, now());
+            long accessed = System.nanoTime();
+            long wallClock = System.currentTimeMillis();
+            delegate.forEach((key, value) -> {
+                Long deadline = deadlines != null ? deadlines.get(key) : null;
+                // a deadline already past expires on the first tick
+                long expiresAt = deadline != null ? Math.max(1, now() + deadline - wallClock) : 0;
+                meta.put(key, new EntryMeta(expiresAt, expiresAt != 0 ? wheel.schedule(key, expiresAt) : null, accessed));
+            });
+            expiry = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            expiry.scheduleAtFixedRate(this::expireDue, 10, 10, TimeUnit.MILLISECONDS);
+        }
+
+        private long now() {
+            return (System.nanoTime() - startNanos) / 1_000_000;
+        }
+
+        public long expiredKeys() {
+            return expired.sum();
+        }
+
+        public long evictedKeys() {
+            return evicted.sum();
+        }
+
+        @Override
+        public String get(String key) {
+            EntryMeta entry = meta.get(key);
+            if (entry == null) {
+                return delegate.get(key);
+            }
+            if (entry.expired(now())) {
+                expireIfDue(key);
+                return null;
+            }
+            entry.accessedAt = System.nanoTime(); // a plain volatile store, no lock or CAS
+            return delegate.get(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return put(key, value, 0);
+        }
+
+        // ttlMillis <= 0 stores the value without expiry; a plain put clears any earlier TTL
+        public String put(String key, String value, long ttlMillis) {
+            final String[] previous = new String[1];
+            final EntryMeta[] replaced = new EntryMeta[1];
+            long now = now();
+            long expiresAt = ttlMillis > 0 ? now + ttlMillis : 0;
+            TimerWheel.Timer timer = expiresAt != 0 ? wheel.schedule(key, expiresAt) : null;
+            EntryMeta installed = new EntryMeta(expiresAt, timer, System.nanoTime());
+            delegate.compute(key, (k, current) -> {
+                replaced[0] = meta.put(k, installed);
+                previous[0] = current;
+                if (replaced[0] != null && replaced[0].expired(now)) {
+                    previous[0] = null;
+                    expired.increment();
+                }
+                return value;
+            });
+            cancelTimer(replaced[0]);
+            logExpiry(key, installed);
+            evictIfNeeded();
+            return previous[0];
+        }
+
+        @Override
+        public String remove(String key) {
+            final String[] previous = new String[1];
+            final EntryMeta[] removed = new EntryMeta[1];
+            long now = now();
+            delegate.compute(key, (k, current) -> {
+                removed[0] = meta.remove(k);
+                previous[0] = current;
+                if (removed[0] != null && removed[0].expired(now)) {
+                    previous[0] = null;
+                    expired.increment();
+                }
+                return null;
+            });
+            cancelTimer(removed[0]);
+            return previous[0];
+        }
+
+        // Read-modify-writes (incr, append, cas, ...) keep the key's TTL and its timer
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            final EntryMeta[] dropped = new EntryMeta[1];
+            final EntryMeta[] kept = new EntryMeta[1];
+            long now = now();
+            String result = delegate.compute(key, (k, current) -> {
+                EntryMeta entry = meta.get(k);
+                if (entry != null && entry.expired(now)) {
+                    expired.increment();
+                    current = null;
+                }
+                String updated = remapping.apply(k, current);
+                if (updated == null) {
+                    dropped[0] = meta.remove(k);
+                } else {
+                    boolean live = entry != null && current != null;
+                    kept[0] = new EntryMeta(live ? entry.expiresAt : 0, live ? entry.timer : null, System.nanoTime());
+                    meta.put(k, kept[0]);
+                    if (entry != null && !live) {
+                        dropped[0] = entry;
+                    }
+                }
+                return updated;
+            });
+            cancelTimer(dropped[0]);
+            if (kept[0] != null && result != null) {
+                logExpiry(key, kept[0]); // replaying the new value alone would clear the TTL
+            }
+            evictIfNeeded();
+            return result;
+        }
+
+        // Logs installed's deadline after the write that installed it. It runs in the key's own
+        // compute and only while installed is still the key's metadata, so no later write to the
+        // key can sit between the two records in the WAL. The unchanged value logs nothing else.
+        private void logExpiry(String key, EntryMeta installed) {
+            WriteAheadLog log = expiryLog;
+            if (log == null || installed.expiresAt == 0) {
+                return;
+            }
+            final long[] ticket = new long[1];
+            delegate.compute(key, (k, current) -> {
+                if (current != null && meta.get(k) == installed) {
+                    ticket[0] = log.append(WriteAheadLog.EXPIRE, k, String.valueOf(wallClock(installed.expiresAt)));
+                }
+                return current;
+            });
+            log.awaitDurable(ticket[0]);
+        }
+
+        private long wallClock(long expiresAt) {
+            return System.currentTimeMillis() + expiresAt - now();
+        }
+
+        // Wall-clock deadline of every live key with a TTL, for snapshots
+        public Map<String, Long> deadlines() {
+            Map<String, Long> deadlines = new HashMap<String, Long>();
+            long now = now();
+            for (Map.Entry<String, EntryMeta> entry : meta.entrySet()) {
+                EntryMeta state = entry.getValue();
+                if (state.expiresAt != 0 && !state.expired(now)) {
+                    deadlines.put(entry.getKey(), wallClock(state.expiresAt));
+                }
+            }
+            return deadlines;
+        }
+
+        private void cancelTimer(EntryMeta entry) {
+            if (entry != null && entry.timer != null) {
+                wheel.cancel(entry.timer);
+            }
+        }
+
+        @Override
+        public void putAll(Map<String, String> entries) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Sets a TTL on an existing key; false if there is no such key
+        public boolean expire(String key, long ttlMillis) {
+            long now = now();
+            long expiresAt = now + Math.max(ttlMillis, 0);
+            TimerWheel.Timer timer = ttlMillis > 0 ? wheel.schedule(key, expiresAt) : null;
+            final EntryMeta[] replaced = new EntryMeta[1];
+            final EntryMeta[] installed = new EntryMeta[1];
+            meta.computeIfPresent(key, (k, entry) -> {
+                if (entry.expired(now)) {
+                    return entry; // left for expireIfDue
+                }
+                replaced[0] = entry;
+                installed[0] = new EntryMeta(expiresAt, timer, entry.accessedAt);
+                return installed[0];
+            });
+            if (replaced[0] == null) {
+                if (timer != null) {
+                    wheel.cancel(timer);
+                }
+                return false;
+            }
+            cancelTimer(replaced[0]);
+            if (ttlMillis <= 0) {
+                expireIfDue(key);
+            } else {
+                logExpiry(key, installed[0]);
+            }
+            return true;
+        }
+
+        // Remaining TTL in millis, -1 for a key without one, -2 for a missing key
+        public long ttl(String key) {
+            EntryMeta entry = meta.get(key);
+            long now = now();
+            if (entry == null || entry.expired(now)) {
+                return -2;
+            }
+            return entry.expiresAt == 0 ? -1 : entry.expiresAt - now;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            Iterator<Map.Entry<String, String>> entries = delegate.iterator();
+            return new Iterator<Map.Entry<String, String>>() {
+                private Map.Entry<String, String> next = advance();
+
+                private Map.Entry<String, String> advance() {
+                    long now = now();
+                    while (entries.hasNext()) {
+                        Map.Entry<String, String> entry = entries.next();
+                        EntryMeta state = meta.get(entry.getKey());
+                        if (state == null || !state.expired(now)) {
+                            return entry;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, String> entry = next;
+                    next = advance();
+                    return entry;
+                }
+            };
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, String> action) {
+            Iterator<Map.Entry<String, String>> entries = iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        }
+
+        private void expireDue() {
+            for (String key : wheel.advance(now())) {
+                expireIfDue(key);
+            }
+        }
+
+        // Removes the key only if it is still expired
+        private void expireIfDue(String key) {
+            long now = now();
+            final EntryMeta[] removed = new EntryMeta[1];
+            delegate.compute(key, (k, current) -> {
+                EntryMeta entry = meta.get(k);
+                if (entry == null || !entry.expired(now) || !meta.remove(k, entry)) {
+                    return current;
+                }
+                removed[0] = entry;
+                expired.increment();
+                return null;
+            });
+            cancelTimer(removed[0]);
+        }
+
+        private void evictIfNeeded() {
+            while (maxBytes > 0 && usedBytes.getAsLong() > maxBytes && !meta.isEmpty()) {
+                String victim = sampleVictim();
+                if (victim != null) {
+                    final EntryMeta[] removed = new EntryMeta[1];
+                    delegate.compute(victim, (k, current) -> {
+                        removed[0] = meta.remove(k);
+                        if (current != null) {
+                            evicted.increment();
+                        }
+                        return null;
+                    });
+                    cancelTimer(removed[0]);
+                }
+            }
+        }
+
+        // Approximate LRU: among a few keys drawn from random parts of the table, an expired key
+        // if there is one, otherwise the one read or written longest ago
+        private String sampleVictim() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long now = now();
+            final String[] victim = new String[1];
+            final long[] oldest = {Long.MAX_VALUE};
+            Consumer<Map.Entry<String, EntryMeta>> consider = entry -> {
+                long age = entry.getValue().expired(now) ? Long.MIN_VALUE : entry.getValue().accessedAt;
+                if (age < oldest[0]) {
+                    oldest[0] = age;
+                    victim[0] = entry.getKey();
+                }
+            };
+            for (int i = 0; i < samples; i++) {
+                // Each split halves the bins covered, so a random walk down the splits lands on a random
+                // bin. If that bin is empty, the nearest non-empty part set aside on the way down is used.
+                Deque<Spliterator<Map.Entry<String, EntryMeta>>> skipped = new ArrayDeque<Spliterator<Map.Entry<String, EntryMeta>>>();
+                Spliterator<Map.Entry<String, EntryMeta>> part = meta.entrySet().spliterator();
+                while (part.estimateSize() > 1) {
+                    Spliterator<Map.Entry<String, EntryMeta>> half = part.trySplit();
+                    if (half == null) {
+                        break;
+                    }
+                    if (random.nextBoolean()) {
+                        skipped.push(part);
+                        part = half;
+                    } else {
+                        skipped.push(half);
+                    }
+                }
+                while (!part.tryAdvance(consider) && (part = skipped.poll()) != null) {
+                }
+            }
+            return victim[0];
+        }
+
+        @Override
+        public void close() throws IOException {
+            expiry.shutdownNow();
+            delegate.close();
+        }
+    }
+
+    // Hierarchical timer wheel (as in Varghese & Lauck, and the Linux kernel): four levels of 64
+    // slots with ticks of tickMillis, 64x coarser per level. A timer sits in the level of the
+    // highest tick bits in which its deadline differs from the current tick and moves down a level
+    // whenever the level above turns over, so scheduling, cancelling and firing are O(1) per timer.
+    static final class TimerWheel {
+        private static final int LEVELS = 4;
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+
+        private final long tickMillis;
+        // wheels[LEVELS][0] is the overflow list, beyond the top level: about 46 hours at 10ms ticks
+        private final Timer[][] wheels = new Timer[LEVELS + 1][SLOTS];
+        private long currentTick;
+
+        // Doubly linked into the list of the slot it sits in, so cancel can unlink it in place
+        static final class Timer {
+            final String key;
+            final long deadlineTick;
+            private Timer prev;
+            private Timer next;
+            private int level = -1; // -1 once fired or cancelled
+            private int slot;
+
+            Timer(String key, long deadlineTick) {
+                this.key = key;
+                this.deadlineTick = deadlineTick;
+            }
+        }
+
+        TimerWheel(long tickMillis, long nowMillis) {
+            this.tickMillis = tickMillis;
+            this.currentTick = nowMillis / tickMillis;
+        }
+
+        synchronized Timer schedule(String key, long deadlineMillis) {
+            // rounded up so a timer never fires early
+            Timer timer = new Timer(key, (deadlineMillis + tickMillis - 1) / tickMillis);
+            insert(timer);
+            return timer;
+        }
+
+        synchronized void cancel(Timer timer) {
+            if (timer.level < 0) {
+                return;
+            }
+            if (timer.prev != null) {
+                timer.prev.next = timer.next;
+            } else {
+                wheels[timer.level][timer.slot] = timer.next;
+            }
+            if (timer.next != null) {
+                timer.next.prev = timer.prev;
+            }
+            timer.prev = null;
+            timer.next = null;
+            timer.level = -1;
+        }
+
+        private void insert(Timer timer) {
+            long deadline = Math.max(timer.deadlineTick, currentTick + 1); // already due: the next tick
+            long diff = deadline ^ currentTick;
+            int level = 0;
+            while (level < LEVELS && diff >>> (SLOT_BITS * (level + 1)) != 0) {
+                level++;
+            }
+            int slot = level < LEVELS ? (int) (deadline >>> (SLOT_BITS * level)) & (SLOTS - 1) : 0;
+            Timer head = wheels[level][slot];
+            timer.prev = null;
+            timer.next = head;
+            if (head != null) {
+                head.prev = timer;
+            }
+            timer.level = level;
+            timer.slot = slot;
+            wheels[level][slot] = timer;
+        }
+
+        // Detaches a whole slot list; its timers count as unlinked until they are inserted again
+        private Timer take(int level, int slot) {
+            Timer head = wheels[level][slot];
+            wheels[level][slot] = null;
+            for (Timer timer = head; timer != null; timer = timer.next) {
+                timer.level = -1;
+            }
+            return head;
+        }
+
+        // Moves the wheel up to nowMillis and returns the keys whose timers fired
+        synchronized List<String> advance(long nowMillis) {
+            List<String> due = new ArrayList<String>();
+            long target = nowMillis / tickMillis;
+            while (currentTick < target) {
+                currentTick++;
+                // Cascade every level that just turned over, top-down, before taking level 0's slot
+                for (int level = LEVELS; level >= 1; level--) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                        continue;
+                    }
+                    Timer head = take(level, level == LEVELS ? 0 : (int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                    while (head != null) {
+                        Timer next = head.next;
+                        if (head.deadlineTick <= currentTick) {
+                            head.next = null;
+                            due.add(head.key);
+                        } else {
+                            insert(head);
+                        }
+                        head = next;
+                    }
+                }
+                for (Timer timer = take(0, (int) currentTick & (SLOTS - 1)); timer != null; ) {
+                    Timer next = timer.next;
+                    timer.next = null;
+                    timer.prev = null;
+                    due.add(timer.key);
+                    timer = next;
+                }
+            }
+            return due;
+        }
+    }
+
+    // Primary side of replication: an in-memory backlog of every change, addressed by byte
+    // offset since startup. Record layout (big-endian):
+    //   [op:1][primary time millis:8][key length:4][value length:4][key][value]   (UTF-8)
+    // Records are appended inside the engine's per-key compute, so each key's records are in the
+    // order its changes were applied. A replica that falls more than the backlog size behind
+    // has to start over with a full sync.
+    public static final class ReplicationLog {
+        static final byte PUT = 1;
+        static final byte DEL = 2;
+        static final byte PING = 3; // stream only: [op][time][0][8][primary end offset]
+        static final byte SNAPSHOT_END = 4; // stream only, after the full-sync entries
+        static final int RECORD_HEADER = 17;
+
+        private final byte[] backlog;
+        private final long runId = new Random().nextLong() & Long.MAX_VALUE;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition appended = lock.newCondition();
+        private long endOffset;
+        // Writers register in the current epoch until their change is visible in the engine; a
+        // snapshot flips the epoch and waits for the old one to drain, so every record before its
+        // start offset is already in what it iterates
+        private final AtomicLong[] inflight = {new AtomicLong(), new AtomicLong()};
+        private int epoch;
+
+        public ReplicationLog(int backlogBytes) {
+            this.backlog = new byte[backlogBytes];
+        }
+
+        public long runId() {
+            return runId;
+        }
+
+        public long endOffset() {
+            lock.lock();
+            try {
+                return endOffset;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int backlogSize() {
+            return backlog.length;
+        }
+
+        static byte[] encode(byte op, long time, String key, byte[] value) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + keyBytes.length + value.length);
+            record.put(op).putLong(time).putInt(keyBytes.length).putInt(value.length).put(keyBytes).put(value);
+            return record.array();
+        }
+
+        // Returns the epoch to pass to committed() once the change is applied
+        int append(byte op, String key, String value) {
+            byte[] record = encode(op, System.currentTimeMillis(), key,
+                    value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+            lock.lock();
+            try {
+                for (int copied = 0; copied < record.length; ) {
+                    int at = (int) ((endOffset + copied) % backlog.length);
+                    int n = Math.min(record.length - copied, backlog.length - at);
+                    System.arraycopy(record, copied, backlog, at, n);
+                    copied += n;
+                }
+                endOffset += record.length;
+                inflight[epoch].incrementAndGet();
+                appended.signalAll();
+                return epoch;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void committed(int epoch) {
+            if (epoch >= 0) {
+                inflight[epoch].decrementAndGet();
+            }
+        }
+
+        // The offset a snapshot starts at: every change before it is visible to an engine scan
+        // started after this returns
+        public synchronized long beginSnapshot() {
+            int drained;
+            long start;
+            lock.lock();
+            try {
+                drained = epoch;
+                epoch ^= 1;
+                start = endOffset;
+            } finally {
+                lock.unlock();
+            }
+            while (inflight[drained].get() != 0) {
+                Thread.yield();
+            }
+            return start;
+        }
+
+        // Copies whole records starting at offset into target, waiting up to waitMillis for some.
+        // Returns the bytes copied (grows target[0] for a record larger than it), or -1 once
+        // offset has been overwritten.
+        int read(long offset, byte[][] target, long waitMillis) throws InterruptedException {
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                while (endOffset == offset) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return 0;
+                    }
+                    appended.awaitNanos(remaining);
+                }
+                if (endOffset - offset > backlog.length) {
+                    return -1;
+                }
+                int length = 0;
+                long at = offset;
+                while (at < endOffset) {
+                    int recordLength = RECORD_HEADER + backlogInt(at + 9) + backlogInt(at + 13);
+                    if (length + recordLength > target[0].length) {
+                        if (length > 0) {
+                            break;
+                        }
+                        target[0] = new byte[recordLength];
+                    }
+                    for (int copied = 0; copied < recordLength; ) {
+                        int from = (int) ((at + copied) % backlog.length);
+                        int n = Math.min(recordLength - copied, backlog.length - from);
+                        System.arraycopy(backlog, from, target[0], length + copied, n);
+                        copied += n;
+                    }
+                    length += recordLength;
+                    at += recordLength;
+                }
+                return length;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int backlogInt(long offset) {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (backlog[(int) ((offset + i) % backlog.length)] & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    // Feeds every change into the replication log from inside the wrapped engine's per-key
+    // compute, the same way DurableStorageEngine feeds the WAL
+    public static class ReplicatingStorageEngine extends ForwardingStorageEngine {
+        private final ReplicationLog log;
+
+        public ReplicatingStorageEngine(StorageEngine delegate, ReplicationLog log) {
+            super(delegate);
+            this.log = log;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            final String[] previous = new String[1];
+            final int[] epoch = {-1};
+            try {
+                delegate.compute(key, (k, current) -> {
+                    previous[0] = current;
+                    epoch[0] = log.append(ReplicationLog.PUT, k, value);
+                    return value;
+                });
+            } finally {
+                log.committed(epoch[0]);
+            }
+            return previous[0];
+        }
+
+        @Override
+        public String remove(String key) {
+            final String[] previous = new String[1];
+            final int[] epoch = {-1};
+            try {
+                delegate.compute(key, (k, current) -> {
+                    previous[0] = current;
+                    if (current != null) {
+                        epoch[0] = log.append(ReplicationLog.DEL, k, null);
+                    }
+                    return null;
+                });
+            } finally {
+                log.committed(epoch[0]);
+            }
+            return previous[0];
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            final int[] epoch = {-1};
+            try {
+                return delegate.compute(key, (k, current) -> {
+                    String updated = remapping.apply(k, current);
+                    if (updated != current) {
+                        epoch[0] = log.append(updated != null ? ReplicationLog.PUT : ReplicationLog.DEL, k, updated);
+                    }
+                    return updated;
+                });
+            } finally {
+                log.committed(epoch[0]);
+            }
+        }
+
+        @Override
+        public void putAll(Map<String, String> entries) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // Lets save/bgsave write a point-in-time snapshot without stopping writers. Sits directly on the
+    // metered engine; while a snapshot runs, the first change to each key records the value it had
+    // when the snapshot started (its pre-image) inside the key's compute, and the snapshot scan
+    // uses the pre-image instead of the live value for any key that has one.
+    public static class SnapshottingStorageEngine extends ForwardingStorageEngine {
+        private static final String ABSENT = new String(); // pre-image of a key created after the snapshot started
+
+        // Writers register in the current phase, so a snapshot can wait until every write that
+        // started before it has been applied
+        private static final class Phase {
+            final LongAdder inflight = new LongAdder();
+            final ConcurrentHashMap<String, String> preImages; // null while no snapshot is running
+
+            Phase(ConcurrentHashMap<String, String> preImages) {
+                this.preImages = preImages;
+            }
+        }
+
+        private volatile Phase phase = new Phase(null);
+
+        public SnapshottingStorageEngine(StorageEngine delegate) {
+            super(delegate);
+        }
+
+        private Phase enter() {
+            while (true) {
+                Phase current = phase;
+                current.inflight.increment();
+                if (phase == current) {
+                    return current;
+                }
+                current.inflight.decrement(); // a snapshot switched phases in between, join the new one
+            }
+        }
+
+        private static void record(Phase phase, String key, String current) {
+            phase.preImages.putIfAbsent(key, current != null ? current : ABSENT);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            Phase p = enter();
+            try {
+                if (p.preImages == null) {
+                    return delegate.put(key, value);
+                }
+                final String[] previous = new String[1];
+                delegate.compute(key, (k, current) -> {
+                    previous[0] = current;
+                    record(p, k, current);
+                    return value;
+                });
+                return previous[0];
+            } finally {
+                p.inflight.decrement();
+            }
+        }
+
+        @Override
+        public String remove(String key) {
+            Phase p = enter();
+            try {
+                if (p.preImages == null) {
+                    return delegate.remove(key);
+                }
+                final String[] previous = new String[1];
+                delegate.compute(key, (k, current) -> {
+                    previous[0] = current;
+                    if (current != null) {
+                        record(p, k, current);
+                    }
+                    return null;
+                });
+                return previous[0];
+            } finally {
+                p.inflight.decrement();
+            }
+        }
+
+        @Override
+        public String compute(String key, BiFunction<String, String, String> remapping) {
+            Phase p = enter();
+            try {
+                if (p.preImages == null) {
+                    return delegate.compute(key, remapping);
+                }
+                return delegate.compute(key, (k, current) -> {
+                    String updated = remapping.apply(k, current);
+                    if (updated != current) {
+                        record(p, k, current);
+                    }
+                    return updated;
+                });
+            } finally {
+                p.inflight.decrement();
+            }
+        }
+
+        @Override
+        public void putAll(Map<String, String> entries) {
+            Phase p = enter();
+            try {
+                if (p.preImages == null) {
+                    delegate.putAll(entries);
+                    return;
+                }
+            } finally {
+                p.inflight.decrement();
+            }
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Hands every entry of the store, as of the moment this is called, to sink. A key can be
+        // passed twice (with the same value) when it changes right after the scan has passed it.
+        // Writers only pay a putIfAbsent per first change of a key while this runs. atStart runs
+        // just before the snapshot point: every write that finished before it is in the snapshot.
+        public synchronized long snapshot(Runnable atStart, BiConsumer<String, String> sink) {
+            atStart.run();
+            Phase previous = phase;
+            Phase snapshot = new Phase(new ConcurrentHashMap<String, String>());
+            phase = snapshot;
+            while (previous.inflight.sum() != 0) {
+                Thread.yield();
+            }
+            try {
+                long entries = 0;
+                Iterator<Map.Entry<String, String>> live = delegate.iterator();
+                while (live.hasNext()) {
+                    Map.Entry<String, String> entry = live.next();
+                    if (!snapshot.preImages.containsKey(entry.getKey())) {
+                        sink.accept(entry.getKey(), entry.getValue());
+                        entries++;
+                    }
+                }
+                // Changed since the start; includes keys deleted before the scan reached them
+                for (Map.Entry<String, String> entry : snapshot.preImages.entrySet()) {
+                    if (entry.getValue() != ABSENT) {
+                        sink.accept(entry.getKey(), entry.getValue());
+                        entries++;
+                    }
+                }
+                return entries;
+            } finally {
+                phase = new Phase(null); // late writers of the snapshot phase only add to a map nobody reads
+            }
+        }
+    }
+
+    // On-disk snapshot written by save/bgsave. DIR/snapshot.manifest names the current generation
+    // and its segment count; the entries are in DIR/snapshot-<generation>-<segment>.seg files:
+    //   ["KVSS"][entries:4][body length:4][crc32 of body:4][body]
+    //   body = ([key length:4][value length:4][key][value])*
+    // Every segment is checked on its own, so they load in parallel and a damaged one only
+    // loses its own entries. The manifest is replaced atomically after all segments are forced.
+    // In cache mode the TTL deadlines go to DIR/snapshot-<generation>-deadlines.ttl, framed the same way:
+    //   ["KVST"][entries:4][body length:4][crc32 of body:4][body]
+    //   body = ([key length:4][key][wall-clock deadline millis:8])*
+    public static final class SnapshotFiles {
+        private static final byte[] MAGIC = {'K', 'V', 'S', 'S'};
+        private static final byte[] DEADLINES_MAGIC = {'K', 'V', 'S', 'T'};
+        private static final int SEGMENT_HEADER = 16;
+        private static final String MANIFEST = "snapshot.manifest";
+        private static long lastGeneration;
+
+        private final File dir;
+        private final long generation;
+        private final int segmentBytes;
+        private ByteBuffer body;
+        private int bodyEntries;
+        private int segments;
+
+        private SnapshotFiles(File dir, long generation, int segmentBytes) {
+            this.dir = dir;
+            this.generation = generation;
+            this.segmentBytes = segmentBytes;
+            this.body = ByteBuffer.allocate(Math.min(segmentBytes, 1 << 20) + 1024);
+        }
+
+        // Writes source's point-in-time view and makes it the current snapshot. Returns {records, segments};
+        // records can exceed the key count by the keys that changed during the save. atStart is
+        // passed on to SnapshottingStorageEngine.snapshot.
+        public static long[] save(File dir, SnapshottingStorageEngine source, int segmentBytes, Runnable atStart) throws IOException {
+            return save(dir, source, segmentBytes, atStart, null);
+        }
+
+        // deadlines, if not null, is read once the entries are written. Any TTL change after the
+        // snapshot point is also in the WAL, so replaying it over the snapshot corrects the rest.
+        public static synchronized long[] save(File dir, SnapshottingStorageEngine source, int segmentBytes, Runnable atStart,
+                                               Supplier<Map<String, Long>> deadlines) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create snapshot directory " + dir);
+            }
+            lastGeneration = Math.max(System.currentTimeMillis(), lastGeneration + 1);
+            SnapshotFiles writer = new SnapshotFiles(dir, lastGeneration, segmentBytes);
+            long entries;
+            try {
+                entries = source.snapshot(atStart, writer::add);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flushSegment();
+            Map<String, Long> expiring = deadlines != null ? deadlines.get() : Collections.<String, Long>emptyMap();
+            if (!expiring.isEmpty()) {
+                writeDeadlines(new File(dir, deadlinesName(writer.generation)), expiring);
+            }
+
+            File manifest = new File(dir, MANIFEST);
+            File staged = new File(dir, MANIFEST + ".tmp");
+            try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                String content = "KVSM " + writer.generation + " " + writer.segments + " " + entries + "\n";
+                channel.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+                channel.force(true);
+            }
+            Files.move(staged.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            String current = "snapshot-" + writer.generation + "-";
+            File[] stale = dir.listFiles((d, name) -> name.startsWith("snapshot-") && (name.endsWith(".seg") || name.endsWith(".ttl"))
+                    && !name.startsWith(current));
+            for (File file : stale != null ? stale : new File[0]) {
+                if (!file.delete()) {
+                    Log.warn("Snapshot: could not delete " + file);
+                }
+            }
+            return new long[] {entries, writer.segments};
+        }
+
+        private void add(String key, String value) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = 8 + keyBytes.length + valueBytes.length;
+            if (body.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + length));
+                body.flip();
+                grown.put(body);
+                body = grown;
+            }
+            body.putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+            bodyEntries++;
+            if (body.position() >= segmentBytes) {
+                try {
+                    flushSegment();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void flushSegment() throws IOException {
+            if (bodyEntries == 0 && segments > 0) {
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, body.position());
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            header.put(MAGIC).putInt(bodyEntries).putInt(body.position()).putInt((int) crc.getValue()).flip();
+            body.flip();
+            File file = new File(dir, segmentName(generation, segments));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = {header, body};
+                while (body.hasRemaining()) {
+                    channel.write(buffers);
+                }
+                channel.force(false);
+            }
+            body.clear();
+            bodyEntries = 0;
+            segments++;
+        }
+
+        private static String segmentName(long generation, int segment) {
+            return String.format("snapshot-%d-%05d.seg", generation, segment);
+        }
+
+        private static String deadlinesName(long generation) {
+            return String.format("snapshot-%d-deadlines.ttl", generation);
+        }
+
+        private static void writeDeadlines(File file, Map<String, Long> deadlines) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(entry.getValue());
+            }
+            ByteBuffer body = ByteBuffer.wrap(bytes.toByteArray());
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, body.remaining());
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            header.put(DEADLINES_MAGIC).putInt(deadlines.size()).putInt(body.remaining()).putInt((int) crc.getValue()).flip();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = {header, body};
+                while (body.hasRemaining()) {
+                    channel.write(buffers);
+                }
+                channel.force(false);
+            }
+        }
+
+        private static void readDeadlines(File file, Map<String, Long> deadlines) throws IOException {
+            if (!file.isFile()) {
+                return; // no key had a TTL
+            }
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            byte[] magic = new byte[DEADLINES_MAGIC.length];
+            int entries = -1;
+            int length = -1;
+            int storedCrc = 0;
+            if (data.remaining() >= SEGMENT_HEADER) {
+                data.get(magic);
+                entries = data.getInt();
+                length = data.getInt();
+                storedCrc = data.getInt();
+            }
+            CRC32 crc = new CRC32();
+            if (Arrays.equals(magic, DEADLINES_MAGIC) && length == data.remaining()) {
+                crc.update(data.array(), SEGMENT_HEADER, length);
+            }
+            if (length != data.remaining() || (int) crc.getValue() != storedCrc || !Arrays.equals(magic, DEADLINES_MAGIC)) {
+                Log.warn("Snapshot: " + file.getName() + " is damaged, its keys load without a TTL");
+                return;
+            }
+            for (int i = 0; i < entries; i++) {
+                int keyLength = data.getInt();
+                String key = new String(data.array(), data.position(), keyLength, StandardCharsets.UTF_8);
+                data.position(data.position() + keyLength);
+                deadlines.put(key, data.getLong());
+            }
+        }
+
+        public static long load(File dir, StorageEngine target) throws IOException {
+            return load(dir, target, null);
+        }
+
+        // Loads the current snapshot into target, one fork-join task per segment; target must be
+        // safe for concurrent writers. Fills deadlines, if not null, with the saved TTL deadlines.
+        // Returns the records loaded, 0 when there is no snapshot.
+        public static long load(File dir, StorageEngine target, Map<String, Long> deadlines) throws IOException {
+            File manifest = new File(dir, MANIFEST);
+            if (!manifest.isFile()) {
+                return 0;
+            }
+            String[] fields = new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+            if (fields.length != 4 || !"KVSM".equals(fields[0])) {
+                throw new IOException("Unreadable snapshot manifest " + manifest);
+            }
+            long generation = Long.parseLong(fields[1]);
+            int segments = Integer.parseInt(fields[2]);
+            lastGeneration = generation;
+            if (deadlines != null) {
+                readDeadlines(new File(dir, deadlinesName(generation)), deadlines);
+            }
+
+            List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+            for (int i = 0; i < segments; i++) {
+                File file = new File(dir, segmentName(generation, i));
+                tasks.add(() -> loadSegment(file, target));
+            }
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                long loaded = 0;
+                for (Future<Long> task : pool.invokeAll(tasks)) {
+                    loaded += task.get();
+                }
+                return loaded;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading the snapshot");
+            } catch (ExecutionException e) {
+                throw new IOException("Could not load the snapshot: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        private static long loadSegment(File file, StorageEngine target) throws IOException {
+            if (!file.isFile()) {
+                Log.warn("Snapshot: segment " + file.getName() + " is missing, skipping it");
+                return 0;
+            }
+            ByteBuffer segment = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            byte[] magic = new byte[MAGIC.length];
+            int entries = -1;
+            int length = -1;
+            int storedCrc = 0;
+            if (segment.remaining() >= SEGMENT_HEADER) {
+                segment.get(magic);
+                entries = segment.getInt();
+                length = segment.getInt();
+                storedCrc = segment.getInt();
+            }
+            CRC32 crc = new CRC32();
+            if (Arrays.equals(magic, MAGIC) && length == segment.remaining()) {
+                crc.update(segment.array(), SEGMENT_HEADER, length);
+            }
+            if (length != segment.remaining() || (int) crc.getValue() != storedCrc || !Arrays.equals(magic, MAGIC)) {
+                Log.warn("Snapshot: segment " + file.getName() + " is damaged, skipping it");
+                return 0;
+            }
+            byte[] bytes = segment.array();
+            Map<String, String> batch = new HashMap<String, String>();
+            for (int i = 0; i < entries; i++) {
+                int keyLength = segment.getInt();
+                int valueLength = segment.getInt();
+                int at = segment.position();
+                batch.put(new String(bytes, at, keyLength, StandardCharsets.UTF_8),
+                        new String(bytes, at + keyLength, valueLength, StandardCharsets.UTF_8));
+                segment.position(at + keyLength + valueLength);
+                if (batch.size() == 1024) {
+                    target.putAll(batch);
+                    batch.clear();
+                }
+            }
+            target.putAll(batch);
+            return entries;
+        }
+    }
+
+    // Append-only log of puts and deletes. Record layout (big-endian):
+    //   [length:4][crc32:4][op:1][key length:4][value length:4][key][value]
+    // where length and crc cover everything after the crc. An EXPIRE record's value is the key's
+    // wall-clock deadline in millis, in decimal; a later PUT or DEL of the key clears it. Appenders only copy into a shared
+    // buffer; a single flusher thread writes the batch and issues one force() for all of it.
+    public static final class WriteAheadLog implements Closeable {
+        static final byte PUT = 1;
+        static final byte DEL = 2;
+        static final byte EXPIRE = 3;
+        private static final int RECORD_HEADER = 17;
+        private static final int MAX_UNFLUSHED_BYTES = 64 * 1024 * 1024;
+
+        public enum FsyncPolicy { ALWAYS, GROUP, OS }
+
+        private final File file;
+        private FileChannel channel; // replaced by discardBefore while the flusher is idle
+        private final FsyncPolicy policy;
+        private final long groupCommitNanos;
+        private final int groupCommitRecords;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition workAvailable = lock.newCondition();
+        private final Condition flushed = lock.newCondition();
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+        private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+        private int pendingRecords;
+        private long firstPendingNanos;
+        private long appendedSeq;
+        private long durableSeq;
+        private long appendedBytes; // file offset where the next record goes
+        private IOException failure;
+        private boolean closed;
+        private final Thread flusher;
+
+        private WriteAheadLog(File file, FileChannel channel, long end, FsyncPolicy policy, long groupCommitMillis, int groupCommitRecords) {
+            this.file = file;
+            this.channel = channel;
+            this.appendedBytes = end;
+            this.policy = policy;
+            this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+            this.groupCommitRecords = groupCommitRecords;
+            this.flusher = new Thread(this::flushLoop, "wal-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+
+        public static WriteAheadLog open(File file, StorageEngine target, FsyncPolicy policy,
+                                         long groupCommitMillis, int groupCommitRecords) throws IOException {
+            return open(file, target, null, policy, groupCommitMillis, groupCommitRecords);
+        }
+
+        // Opens (or creates) the log, replays its valid prefix into target and drops any torn tail.
+        // EXPIRE records update deadlines (key -> wall-clock millis) when it is not null.
+        public static WriteAheadLog open(File file, StorageEngine target, Map<String, Long> deadlines, FsyncPolicy policy,
+                                         long groupCommitMillis, int groupCommitRecords) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validEnd = replay(channel, target, deadlines);
+            if (validEnd < channel.size()) {
+                Log.warn("WAL: discarding " + (channel.size() - validEnd) + " bytes of incomplete records");
+                channel.truncate(validEnd);
+            }
+            channel.position(validEnd);
+            return new WriteAheadLog(file, channel, validEnd, policy, groupCommitMillis, groupCommitRecords);
+        }
+
+        private static long replay(FileChannel channel, StorageEngine target, Map<String, Long> deadlines) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16));
+            CRC32 checksum = new CRC32();
+            long size = channel.size();
+            long position = 0;
+            long records = 0;
+            while (true) {
+                byte[] body;
+                int storedCrc;
+                try {
+                    int length = in.readInt();
+                    storedCrc = in.readInt();
+                    // a record may be as large as any value the store took; only one running past the
+                    // end of the file is torn (and a garbage length must not allocate gigabytes)
+                    if (length < RECORD_HEADER - 8 || length > size - position - 8) {
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                checksum.reset();
+                checksum.update(body, 0, body.length);
+                if ((int) checksum.getValue() != storedCrc) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(body);
+                byte op = record.get();
+                int keyLength = record.getInt();
+                int valueLength = record.getInt();
+                String key = new String(body, 9, keyLength, StandardCharsets.UTF_8);
+                if (op == EXPIRE) {
+                    if (deadlines != null) {
+                        deadlines.put(key, Long.parseLong(new String(body, 9 + keyLength, valueLength, StandardCharsets.UTF_8)));
+                    }
+                } else {
+                    if (op == PUT) {
+                        target.put(key, new String(body, 9 + keyLength, valueLength, StandardCharsets.UTF_8));
+                    } else {
+                        target.remove(key);
+                    }
+                    if (deadlines != null) {
+                        deadlines.remove(key);
+                    }
+                }
+                position += 8 + body.length;
+                records++;
+            }
+            Log.info("WAL: replayed " + records + " records");
+            return position;
+        }
+
+        // Copies one record into the pending batch and returns its sequence number; never does I/O
+        long append(byte op, String key, String value) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            int bodyLength = 9 + keyBytes.length + valueBytes.length;
+            lock.lock();
+            try {
+                if (pending.remaining() < 8 + bodyLength) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 8 + bodyLength));
+                    pending.flip();
+                    grown.put(pending);
+                    pending = grown;
+                }
+                int start = pending.position();
+                pending.putInt(bodyLength).putInt(0).put(op).putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+                crc.reset();
+                crc.update(pending.array(), start + 8, bodyLength);
+                pending.putInt(start + 4, (int) crc.getValue());
 
-        ClientHandler(DatagramSocket socket, DatagramPacket packet) {
-            this.socket = socket;
-            this.packet = new DatagramPacket(packet.getData(), packet.getLength(), packet.getAddress(), packet.getPort());
+                appendedBytes += 8 + bodyLength;
+                if (pendingRecords++ == 0) {
+                    firstPendingNanos = System.nanoTime();
+                }
+                if (policy != FsyncPolicy.GROUP || pendingRecords >= groupCommitRecords || pendingRecords == 1) {
+                    workAvailable.signal();
+                }
+                return ++appendedSeq;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        @Override
-        public void run() {
-            if (shutdownServer) {
+        // Blocks until the record with this sequence number is durable under the fsync policy
+        void awaitDurable(long seq) {
+            if (seq == 0) {
                 return;
             }
+            lock.lock();
             try {
-                String received = new String(packet.getData(), 0, packet.getLength());
-                //System.out.println("ClientHandler received: " + received); // Debug line
-                String response = processCommand(received);
-
-                synchronized (socketLock) {
-                    if (!shutdownServer) {
-                        byte[] sendData = response.getBytes();
-                        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, packet.getAddress(), packet.getPort());
-                        socket.send(sendPacket);
+                while (durableSeq < seq && failure == null && !closed) {
+                    if (policy == FsyncPolicy.OS && pending.position() < MAX_UNFLUSHED_BYTES) {
+                        return; // the OS decides when data reaches the disk, only apply backpressure
                     }
+                    flushed.awaitUninterruptibly();
                 }
-                
-                if (shutdownServer) {
-                    udpSocket.close(); // Close the socket to interrupt the blocking receive call
-                }
-            }  catch (IOException e) {
-                if (!shutdownServer || !(e instanceof SocketException)) {
-                    e.printStackTrace();
+                if (failure != null) {
+                    throw new UncheckedIOException("Write-ahead log failed", failure);
                 }
+            } finally {
+                lock.unlock();
             }
         }
-    }
-
 
-    private static void startUdpClient() {
-    	DatagramSocket socket = null;
-        BufferedReader stdIn = null;
-        
-        long startTime = System.nanoTime(); //perf
-        
-    	try {
-            socket = new DatagramSocket();
-            InetAddress serverAddress = InetAddress.getByName("localhost");
-            
+        private void flushLoop() {
             while (true) {
-            	String[] commandParts = getClientCommand();
-
-            	String command = String.join(" ", commandParts);
-                //System.out.println("Client sending command: " + command); // Debug line
-                
-                
-                
-                if (!command.trim().isEmpty()) {
-                    //System.out.println("Formatted command: " + command); // Debug line
-                    sendCommand(socket, serverAddress, UDP_PORT, command);
-                    
-                } else {
-                    System.out.println("Invalid command format"); // Debug line
+                long batchSeq;
+                lock.lock();
+                try {
+                    while (pendingRecords == 0 && !closed) {
+                        workAvailable.awaitUninterruptibly();
+                    }
+                    if (pendingRecords == 0) {
+                        return;
+                    }
+                    if (policy == FsyncPolicy.GROUP) {
+                        // Let more writers join the batch, up to the record or time limit
+                        long waitNanos = firstPendingNanos + groupCommitNanos - System.nanoTime();
+                        while (pendingRecords < groupCommitRecords && waitNanos > 0 && !closed) {
+                            try {
+                                waitNanos = workAvailable.awaitNanos(waitNanos);
+                            } catch (InterruptedException e) {
+                                break;
+                            }
+                        }
+                    }
+                    ByteBuffer batch = pending;
+                    pending = writing;
+                    writing = batch;
+                    pendingRecords = 0;
+                    batchSeq = appendedSeq;
+                } finally {
+                    lock.unlock();
                 }
 
-                //sendCommand(socket, serverAddress, UDP_PORT, command);
-                if ("exit".equals(command)) {
-                	System.out.println("startUdpClient-break stmt on exit");// Debug line
-                	break;
+                IOException error = null;
+                try {
+                    writing.flip();
+                    while (writing.hasRemaining()) {
+                        channel.write(writing);
+                    }
+                    writing.clear();
+                    if (policy != FsyncPolicy.OS) {
+                        channel.force(false);
+                    }
+                } catch (IOException e) {
+                    error = e;
                 }
 
-                if (!"invalid".equals(commandParts[0]) && !"error".equals(commandParts[0])) {
-                    String response = receiveResponse(socket);
-                    System.out.println("Server says: " + response);
+                lock.lock();
+                try {
+                    if (error != null) {
+                        failure = error;
+                        Log.error("WAL write failed: " + error.getMessage());
+                    } else {
+                        durableSeq = batchSeq;
+                    }
+                    flushed.signalAll();
+                    if (error != null) {
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-        	long endTime = System.nanoTime();
-            long duration = (endTime - startTime)/1_000_000; // Convert to milliseconds
-            System.out.println("UDP Operation executed in " + duration + " ms");
-        	
-            if (socket != null) {
-                socket.close();
-            }
+        }
+
+        // Offset just past the last record appended so far
+        long position() {
+            lock.lock();
             try {
-                if (stdIn != null) {
-                    stdIn.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+                return appendedBytes;
+            } finally {
+                lock.unlock();
             }
         }
-    }
-    
-    private static void sendCommand(DatagramSocket socket, InetAddress serverAddress, int serverPort, String command) throws IOException {
-    	try {
-    		//System.out.println("Sending command: " + command); // Debug line
-	        byte[] sendData = command.getBytes();
-	        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, serverPort);
-	        socket.send(sendPacket);
-    	} catch (SocketTimeoutException e) {
-            //SocketTimeoutExecption
-        }
-    }
 
-    private static String receiveResponse(DatagramSocket socket) throws IOException {
-    	byte[] receiveData = new byte[65535];
-        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-        socket.receive(receivePacket);
-        return new String(receivePacket.getData(), 0, receivePacket.getLength());
-    }
-      
-    private static String processCommand(String command) {
-    	//System.out.println("Processing command: " + command); // Debug line
-        String[] parts = command.split(" ");
-        //System.out.println("Command parts: " + Arrays.toString(parts)); // Debug line
-        switch (parts[0].toLowerCase()) {
-            case "put":
-                return handlePut(parts);
-            case "get":
-                return handleGet(parts);
-            case "del":
-                return handleDel(parts);
-            case "store": // Handle 'store' command
-                return Store();
-            case "test":
-                return handleTest(); // Handle 'test' command
-            case "getlen":
-                return handleGetLen(); // Handle 'getlen' command
-            case "exit":
-            	//System.out.println("Exit command received, shutting down server."); // Debug line
-            	shutdownServer = true;
-            	try {
-                    if (serverSocket != null && !serverSocket.isClosed()) {
-                        serverSocket.close();
+        // Drops the records before offset, which a snapshot already holds, by copying the rest to a
+        // new file and renaming it over the log. Most of the rest is copied while writers go on;
+        // appends only wait for the last part and the rename. Replaying either file over the
+        // snapshot gives the same store, so a crash at any point is safe. Returns the bytes dropped.
+        long discardBefore(long offset) throws IOException {
+            File staged = new File(file.getPath() + ".tmp");
+            try (FileChannel copy = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // bytes already written never change, so they can be copied without the lock
+                long copied = transfer(channel, offset, Math.max(offset, channel.size()), copy);
+                lock.lock();
+                try {
+                    while (durableSeq < appendedSeq && failure == null && !closed) {
+                        flushed.awaitUninterruptibly(); // the flusher is idle once everything is written
                     }
-                } catch (IOException e) {
-                    System.err.println("Error closing server socket: " + e.getMessage());
-                    e.printStackTrace();
+                    if (failure != null || closed) {
+                        throw new IOException("the log is " + (closed ? "closed" : "failed"));
+                    }
+                    transfer(channel, copied, appendedBytes, copy);
+                    copy.force(true);
+                    Files.move(staged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    FileChannel previous = channel;
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel.position(channel.size());
+                    appendedBytes -= offset;
+                    previous.close();
+                    return offset;
+                } finally {
+                    lock.unlock();
                 }
-                return "Server shutting down.";
-            default:
-                return "ERROR: Unknown command.";
-        }
-    }
-    
-
-    private static String[] getClientCommand() {
-        BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in));
-        String[] command = new String[3]; // Command, Key, Value
-        try {
-            System.out.println("\nChoose an action:");
-            System.out.println("1. Put");
-            System.out.println("2. Get");
-            System.out.println("3. Del");
-            System.out.println("4. Store");
-            System.out.println("5. Exit");
-            System.out.println("6. Test");
-            System.out.println("7. Length");
-            System.out.println("8. Test2");
-            System.out.print("Enter choice: ");
-
-            String userInput = stdIn.readLine();
-            switch (userInput) {
-                case "1": // Put
-                    System.out.print("Enter key: ");
-                    command[1] = stdIn.readLine();
-                    System.out.print("Enter value: ");
-                    command[2] = stdIn.readLine();
-                    command[0] = "put";
-                    break;
-                case "2": // Get
-                	command = new String[2];
-                    System.out.print("Enter key: ");
-                    command[1] = stdIn.readLine();
-                    command[0] = "get";
-                    break;
-                case "3": // Del
-                	command = new String[2];
-                    System.out.print("Enter key: ");
-                    command[1] = stdIn.readLine();
-                    command[0] = "del";
-                    break;
-                case "4": // Store
-                    command[0] = "store";
-                    break;
-                case "5": // Exit
-                	command = new String[1];
-                    command[0] = "exit";
-                    //System.out.println("Client Shutting down"); // Debug line
-                    break;
-                case "6": // Test
-                    command[0] = "test";
-                    break;
-                case "7": // Length
-                    command[0] = "getlen";
-                    break;
-                case "8": // Test2
-                    command[0] = "test2";
-                    break;
-                default:
-                    System.out.println("Invalid choice. Please enter a number between 1 and 8.");
+            } finally {
+                Files.deleteIfExists(staged.toPath());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return command;
-    }
-
-    private static String handlePut(String[] parts) {
-        if (parts.length != 3) {
-            return "ERROR: Usage: put <key> <value>";
-        }
-        synchronized (putLock) { // Synchronize for concurrent write access
-            map.put(parts[1], parts[2]);
-            return "OK";
         }
-    }
 
-    private static String handleGet(String[] parts) {
-        if (parts.length != 2) {
-        	 return "ERROR: Usage: get <key> - Received parts: " + Arrays.toString(parts);
+        // Copies [from, to) of source to the end of target; returns to
+        private static long transfer(FileChannel source, long from, long to, FileChannel target) throws IOException {
+            while (from < to) {
+                from += source.transferTo(from, to - from, target);
+            }
+            return to;
         }
-        String value = map.get(parts[1]);
-        return value != null ? value : "NOT FOUND";
-    }
 
-    private static String handleDel(String[] parts) {
-        if (parts.length != 2) {
-        	return "ERROR: Usage: del <key> - Received parts: " + Arrays.toString(parts);
-        }
-        return map.remove(parts[1]) != null ? "OK" : "NOT FOUND";
-    }
-    
-    private static String Store() {
-        StringBuilder sb = new StringBuilder();
-        map.forEach((key, value) -> sb.append(key).append("=").append(value).append("; "));
-        String fullContents = sb.toString();
-        if (fullContents.length() > 65000) {
-            // Trim the contents if too long
-            String trimmedContents = "TRIMMED:" + fullContents.substring(0, 65000) + ".....trimmed";
-            return trimmedContents;
-        } else {
-            return fullContents;
-        }
-    }
-    
-    private static String handleTest() {
-        int numberOfEntriesNeeded = 700; // Adjust if necessary based on the size of keys and values
-        for (int i = 0; i < numberOfEntriesNeeded; i++) {
-            String key = "key" + i;
-            // Create a value that is 90 characters long
-            String value = "value" + i + new String(new char[80]).replace('\0', 'x');
-            map.put(key, value);
+        // Writes out everything appended so far and stops the flusher
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                closed = true;
+                workAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.force(true);
+            channel.close();
         }
-
-        // Step 2: Trigger the `store` command
-        String storeContents = Store();
-        return "TEST COMPLETED: Store contents length: " + storeContents.length();
-    }
-
-    private static String handleGetLen() {
-        String contentLength = String.valueOf(Store().length());
-        return "LENGTH:" + contentLength;
     }
     
     //RMI
     private static void startRmiServer() {
     	try {
             KeyValueStoreServer server = new KeyValueStoreServerImpl();
-            Registry registry = LocateRegistry.createRegistry(1099);
+            Registry registry = LocateRegistry.createRegistry(rmiPort);
             registry.rebind("KeyValueStoreServer", server);
-            System.out.println("Server is ready.");
+            Log.info("Server is ready.");
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Could not start the RMI server", e);
         }
     }
     
@@ -536,7 +7519,7 @@ public class KeyValueStore {
     	long startTime = System.nanoTime();
         // Client logic here
         try {
-            Registry registry = LocateRegistry.getRegistry("localhost", 1099);
+            Registry registry = LocateRegistry.getRegistry("localhost", rmiPort);
             KeyValueStoreServer server = (KeyValueStoreServer) registry.lookup("KeyValueStoreServer");
             
             Scanner scanner = new Scanner(System.in);
@@ -551,6 +7534,8 @@ public class KeyValueStore {
                 System.out.println("6. Test");
                 System.out.println("7. Length");
                 System.out.println("8. Test2");
+                System.out.println("9. Scan");
+                System.out.println("10. Stats");
                 System.out.print("Enter choice: ");
 
                 userInput = scanner.nextLine();
@@ -595,6 +7580,21 @@ public class KeyValueStore {
                     case "8":
                         System.out.println(server.test2());
                         break;
+                    case "9":
+                        System.out.print("Enter key prefix (blank for all): ");
+                        String prefix = scanner.nextLine();
+                        Iterator<Map.Entry<String, String>> entries = scanAll(server, 100, prefix.isEmpty() ? null : prefix);
+                        long scanned = 0;
+                        while (entries.hasNext()) {
+                            Map.Entry<String, String> entry = entries.next();
+                            System.out.println(entry.getKey() + "=" + entry.getValue());
+                            scanned++;
+                        }
+                        System.out.println(scanned + " entries");
+                        break;
+                    case "10":
+                        System.out.println(server.stats());
+                        break;
                     default:
                         System.out.println("Invalid choice. Please enter 1, 2, 3, 4, or 5.");
                         break;
@@ -620,82 +7620,157 @@ public class KeyValueStore {
     	String put(String key, String value) throws RemoteException;
         String get(String key) throws RemoteException;
         String del(String key) throws RemoteException;
+        String putIfAbsent(String key, String value) throws RemoteException;
+        String cas(String key, String expected, String value) throws RemoteException;
+        String incr(String key, long delta) throws RemoteException;
+        String append(String key, String value) throws RemoteException;
+        List<String> mget(List<String> keys) throws RemoteException;
+        String mput(Map<String, String> entries) throws RemoteException;
+        List<String> mdel(List<String> keys) throws RemoteException;
+        ScanPage scan(long cursor, int count, String prefix) throws RemoteException;
         String store() throws RemoteException;
         String test() throws RemoteException;
         String getLen() throws RemoteException;
         String test2() throws RemoteException;
+        Map<String, Long> stats() throws RemoteException;
         void shutdown() throws RemoteException;
     }
 
     public static class KeyValueStoreServerImpl extends UnicastRemoteObject implements KeyValueStoreServer {
     	private static final long serialVersionUID = 1L;
-        private static ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
 
         protected KeyValueStoreServerImpl() throws RemoteException {
             super();
         }
 
+        private static String rmiClient() {
+            try {
+                return RemoteServer.getClientHost();
+            } catch (ServerNotActiveException e) {
+                return "local"; // called in-process, not over RMI
+            }
+        }
+
+        // Counts and times one remote call under the "rmi" transport. A refused call answers with
+        // refused(error), so callers get the same ERROR replies as over TCP and UDP.
+        private static <T> T timed(String command, Supplier<T> call, Function<String, T> refused) {
+            countCommand(command);
+            String readOnly = readOnlyError(command);
+            if (readOnly != null) {
+                return refused.apply(readOnly);
+            }
+            if (!admit(rmiClient())) {
+                return refused.apply(RATE_LIMITED_ERROR);
+            }
+            long start = System.nanoTime();
+            try {
+                return call.get();
+            } finally {
+                recordLatency("rmi", command, System.nanoTime() - start);
+            }
+        }
+
+        private static String timed(String command, Supplier<String> call) {
+            return timed(command, call, error -> error);
+        }
+
+        // For results that cannot carry an ERROR string
+        private static <T> T refuse(String error) {
+            throw new IllegalStateException(error);
+        }
+
         @Override
         public String put(String key, String value) throws RemoteException {
-            synchronized (map) {
-                map.put(key, value);
-                System.out.println("Entry added. Current store size: " + map.size());
+            return timed("put", () -> {
+                engine.put(key, value);
+                rmiLog.log(Log.Level.DEBUG, () -> "Entry added. Current store size: " + engine.size());
                 return "OK";
-            }
+            });
         }
 
         @Override
         public String get(String key) throws RemoteException {
-            String value = map.get(key);
-            return value != null ? value : "NOT FOUND";
+            return timed("get", () -> {
+                String value = lookup(key);
+                return value != null ? value : "NOT FOUND";
+            });
         }
 
         @Override
         public String del(String key) throws RemoteException {
-            String previousValue = map.remove(key);
-            return (previousValue != null) ? (key + " deleted successfully") : ("NOT FOUND: " + key);
+            return timed("del", () -> {
+                String previousValue = engine.remove(key);
+                return (previousValue != null) ? (key + " deleted successfully") : ("NOT FOUND: " + key);
+            });
+        }
+
+        @Override
+        public String putIfAbsent(String key, String value) throws RemoteException {
+            return timed("putifabsent", () -> putIfAbsentValue(key, value));
+        }
+
+        @Override
+        public String cas(String key, String expected, String value) throws RemoteException {
+            return timed("cas", () -> compareAndSetValue(key, expected, value));
+        }
+
+        @Override
+        public String incr(String key, long delta) throws RemoteException {
+            return timed("incr", () -> incrementValue(key, delta));
+        }
+
+        @Override
+        public String append(String key, String value) throws RemoteException {
+            return timed("append", () -> appendValue(key, value));
+        }
+
+        @Override
+        public List<String> mget(List<String> keys) throws RemoteException {
+            return timed("mget", () -> getValues(keys), error -> Collections.nCopies(keys.size(), error));
+        }
+
+        @Override
+        public String mput(Map<String, String> entries) throws RemoteException {
+            return timed("mput", () -> putValues(entries));
+        }
+
+        @Override
+        public List<String> mdel(List<String> keys) throws RemoteException {
+            return timed("mdel", () -> deleteValues(keys), error -> Collections.nCopies(keys.size(), error));
+        }
+
+        @Override
+        public ScanPage scan(long cursor, int count, String prefix) throws RemoteException {
+            return timed("scan", () -> scanPage(cursor, count, prefix), KeyValueStoreServerImpl::refuse);
         }
 
         @Override
         public String store() throws RemoteException {
-            StringBuilder sb = new StringBuilder();
-            map.forEach((k, v) -> sb.append(k).append("=").append(v).append("; "));
-            String fullContents = sb.toString();
-            return (fullContents.length() > 65000) ?
-                    ("TRIMMED:" + fullContents.substring(0, 65000) + ".....trimmed") : fullContents;
+            return timed("store", () -> Store());
         }
 
         @Override
         public String test() throws RemoteException {
-            int numberOfEntriesNeeded = 700;
-            for (int i = 0; i < numberOfEntriesNeeded; i++) {
-                String key = "key" + i;
-                String value = "value" + i + new String(new char[80]).replace('\0', 'x');
-                map.put(key, value);
-            }
-            String storeContents = store();
-            return "TEST COMPLETED: Store contents length: " + storeContents.length();
+            return timed("test", () -> handleTest());
         }
 
         @Override
         public String getLen() throws RemoteException {
-            return "LENGTH:" + store().length();
+            return timed("getlen", () -> handleGetLen());
+        }
+
+        @Override
+        public Map<String, Long> stats() throws RemoteException {
+            return timed("stats", () -> statsSnapshot(), KeyValueStoreServerImpl::refuse);
         }
 
         @Override
         public String test2() throws RemoteException {
-            int mapSize = map.size();
-            StringBuilder firstKeys = new StringBuilder("First keys:");
-            int count = 0;
-            for (String key : map.keySet()) {
-                if (count >= 10) break;
-                firstKeys.append(" ").append(key);
-                count++;
-            }
-            return "TEST2 COMPLETED: Size of store: " + mapSize + "; " + firstKeys.toString();
+            return timed("test2", () -> handleTest2());
         }
+
         public void shutdown() throws RemoteException {
-            System.out.println("Server is shutting down...");
+            Log.info("Server is shutting down...");
             System.exit(0); // Terminate the server process
         }
     }
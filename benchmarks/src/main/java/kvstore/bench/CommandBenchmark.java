@@ -0,0 +1,40 @@
+package kvstore.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Full text-command path minus the network: split, dispatch, counters, latency recording and the engine call
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    @Param({"get k1", "put k1 value1", "del missing", "mget k1 k2 k3 k4", "incr counter 1", "unknown command"})
+    public String command;
+
+    @Setup
+    public void setup() throws Throwable {
+        Server.silence();
+        for (int i = 0; i < 4; i++) {
+            Server.processCommand("put k" + (i + 1) + " value" + (i + 1));
+        }
+    }
+
+    @Benchmark
+    public String processCommand() throws Throwable {
+        return Server.processCommand(command);
+    }
+}
@@ -0,0 +1,63 @@
+package kvstore.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// handleGet for keys that exist and keys that don't, per storage engine
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetBenchmark {
+    private static final int KEYS = 65536;
+
+    @Param({"chm", "offheap", "log", "sharded", "compact"})
+    public String storage;
+
+    @Param({"100"})
+    public int valueSize;
+
+    private String[][] hits;
+    private String[][] misses;
+
+    @Setup
+    public void setup() throws Throwable {
+        Server.silence();
+        Server.useStorage(storage);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueSize; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        hits = new String[KEYS][];
+        misses = new String[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            Server.handlePut(new String[] {"put", "key" + i, value.toString()});
+            hits[i] = new String[] {"get", "key" + i};
+            misses[i] = new String[] {"get", "missing" + i};
+        }
+    }
+
+    @Benchmark
+    public String hit() throws Throwable {
+        return Server.handleGet(hits[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public String miss() throws Throwable {
+        return Server.handleGet(misses[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
@@ -0,0 +1,80 @@
+package kvstore.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// handlePut with 1 to 64 writers spread over a shared key space; a smaller keySpace means more contention
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutBenchmark {
+    @Param({"chm", "offheap", "log", "sharded", "compact"})
+    public String storage;
+
+    @Param({"1000", "1000000"})
+    public int keySpace;
+
+    @Param({"100"})
+    public int valueSize;
+
+    private String[][] commands;
+
+    @Setup
+    public void setup() throws Throwable {
+        Server.silence();
+        Server.useStorage(storage);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueSize; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        // Prebuilt so the benchmark measures the put, not string building
+        commands = new String[Math.min(keySpace, 65536)][];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new String[] {"put", "key" + (long) i * keySpace / commands.length, value.toString()};
+        }
+    }
+
+    private String put() throws Throwable {
+        return Server.handlePut(commands[ThreadLocalRandom.current().nextInt(commands.length)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String threads01() throws Throwable {
+        return put();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String threads04() throws Throwable {
+        return put();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String threads16() throws Throwable {
+        return put();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String threads64() throws Throwable {
+        return put();
+    }
+}
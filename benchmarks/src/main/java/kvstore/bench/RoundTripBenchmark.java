@@ -0,0 +1,115 @@
+package kvstore.bench;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.rmi.Remote;
+import java.rmi.registry.LocateRegistry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One get per round trip over loopback against servers running in the benchmark JVM. Each
+// executor mode gets its own fork because the servers bind fixed ports and start only once.
+// The server pools and RMI runtime are never shut down, so the fork is not made to wait for them.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+@Threads(4)
+public class RoundTripBenchmark {
+    private static final String KEY = "bench-key";
+
+    @State(Scope.Benchmark)
+    public static class Servers {
+        @Param({"cached", "fixed:64", "virtual"})
+        public String executor;
+
+        @Param({"chm"})
+        public String storage;
+
+        @Setup(Level.Trial)
+        public void start() throws Throwable {
+            Server.silence();
+            Server.useExecutors(executor);
+            Server.useStorage(storage);
+            Server.startAll();
+            Server.processCommand("put " + KEY + " value");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Clients {
+        Socket tcp;
+        BufferedReader tcpIn;
+        PrintWriter tcpOut;
+        DatagramSocket udp;
+        DatagramPacket udpResponse;
+        MethodHandle rmiGet;
+
+        @Setup(Level.Trial)
+        public void connect(Servers servers) throws Exception {
+            tcp = new Socket("localhost", Server.TCP_PORT);
+            tcp.setTcpNoDelay(true);
+            tcpIn = new BufferedReader(new InputStreamReader(tcp.getInputStream(), StandardCharsets.UTF_8));
+            tcpOut = new PrintWriter(tcp.getOutputStream(), true);
+            udp = new DatagramSocket();
+            udp.setSoTimeout(1000);
+            udp.connect(InetAddress.getLoopbackAddress(), Server.UDP_PORT);
+            udpResponse = new DatagramPacket(new byte[65535], 65535);
+            // The remote interface is nested in the default-package class, so bind its get through a MethodHandle too
+            Remote stub = LocateRegistry.getRegistry("localhost", Server.RMI_PORT).lookup("KeyValueStoreServer");
+            rmiGet = MethodHandles.publicLookup()
+                    .findVirtual(Class.forName("KeyValueStore$KeyValueStoreServer"), "get", MethodType.methodType(String.class, String.class))
+                    .bindTo(stub);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws Exception {
+            tcp.close();
+            udp.close();
+        }
+    }
+
+    private static final byte[] UDP_GET = ("get " + KEY).getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public String tcp(Clients clients) throws Exception {
+        clients.tcpOut.println("get " + KEY);
+        return clients.tcpIn.readLine();
+    }
+
+    @Benchmark
+    public int udp(Clients clients) throws Exception {
+        clients.udp.send(new DatagramPacket(UDP_GET, UDP_GET.length));
+        clients.udp.receive(clients.udpResponse);
+        return clients.udpResponse.getLength();
+    }
+
+    @Benchmark
+    public String rmi(Clients clients) throws Throwable {
+        return (String) clients.rmiGet.invoke(KEY);
+    }
+}
@@ -0,0 +1,121 @@
+package kvstore.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+
+// KeyValueStore lives in the default package, which named packages cannot import, and its
+// handlers are private. This class binds them once as MethodHandles so the benchmarks call
+// straight into the server code without reflection on the measured path.
+final class Server {
+    static final int TCP_PORT = 4999;
+    static final int UDP_PORT = 5000;
+    static final int RMI_PORT = 1099;
+
+    private static final Class<?> STORE = loadStore();
+    private static final MethodHandle PROCESS_COMMAND = method("processCommand", String.class, String.class);
+    private static final MethodHandle HANDLE_PUT = method("handlePut", String[].class);
+    private static final MethodHandle HANDLE_GET = method("handleGet", String[].class);
+    private static final MethodHandle STORE_DUMP = method("Store");
+    private static final MethodHandle REPLACE_STORAGE = method("replaceStorage", String.class);
+    private static final MethodHandle CONFIGURE_EXECUTORS = method("configureExecutors", String.class);
+
+    private static File logDir; // temporary directory of the current log engine
+
+    private Server() {
+    }
+
+    static String processCommand(String command) throws Throwable {
+        return (String) PROCESS_COMMAND.invokeExact(command, "bench");
+    }
+
+    static String handlePut(String[] parts) throws Throwable {
+        return (String) HANDLE_PUT.invokeExact(parts);
+    }
+
+    static String handleGet(String[] parts) throws Throwable {
+        return (String) HANDLE_GET.invokeExact(parts);
+    }
+
+    static String store() throws Throwable {
+        return (String) STORE_DUMP.invokeExact();
+    }
+
+    // Same specs as --storage; log engines get a fresh temporary directory. Closes the engine of
+    // the previous trial (and deletes its directory) instead of leaking one per trial.
+    static void useStorage(String spec) throws Throwable {
+        File previousDir = logDir;
+        logDir = null;
+        if (spec.equals("log")) {
+            logDir = Files.createTempDirectory("kvstore-bench").toFile();
+            spec = "log:" + logDir.getPath();
+        }
+        REPLACE_STORAGE.invokeExact(spec);
+        if (previousDir != null) {
+            File[] files = previousDir.listFiles();
+            for (File file : files != null ? files : new File[0]) {
+                file.delete();
+            }
+            previousDir.delete();
+        }
+    }
+
+    static void useExecutors(String spec) throws Throwable {
+        CONFIGURE_EXECUTORS.invokeExact(spec);
+    }
+
+    // Starts the blocking TCP, UDP and RMI servers on daemon threads in this JVM
+    static void startAll() throws Throwable {
+        daemon("tcp-server", method("startTcpServer"));
+        daemon("udp-server", method("startUdpServer"));
+        method("startRmiServer").invokeExact();
+        Thread.sleep(500); // let the listeners bind
+    }
+
+    // The servers log every connection and datagram; keep that out of the measurements
+    static void silence() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    private static void daemon(String name, MethodHandle server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.invoke();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Class<?> loadStore() {
+        try {
+            return Class.forName("KeyValueStore");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("KeyValueStore is not on the classpath", e);
+        }
+    }
+
+    private static MethodHandle method(String name, Class<?>... parameterTypes) {
+        try {
+            Method method = STORE.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("KeyValueStore." + name + " not found", e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package kvstore.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The store dump at growing store sizes; its cost should stay flat once the store is past the trim point
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StoreBenchmark {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"chm"})
+    public String storage;
+
+    @Setup
+    public void setup() throws Throwable {
+        Server.silence();
+        Server.useStorage(storage);
+        for (int i = 0; i < entries; i++) {
+            Server.handlePut(new String[] {"put", "key" + i, "value" + i});
+        }
+    }
+
+    @Benchmark
+    public String store() throws Throwable {
+        return Server.store();
+    }
+
+    @Benchmark
+    public String getlen() throws Throwable {
+        return Server.processCommand("getlen");
+    }
+}
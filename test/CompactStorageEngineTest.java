@@ -0,0 +1,83 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CompactStorageEngineTest {
+
+    // One segment starting at 16 slots grows many times; the overwrites leave pages mostly dead,
+    // so segments are also compacted along the way
+    @Test
+    public void matchesHashMapAcrossResizeMigrationAndCompaction() {
+        for (int segments : new int[] {1, 8}) {
+            KeyValueStore.CompactStorageEngine engine = new KeyValueStore.CompactStorageEngine(segments);
+            Map<String, String> model = new HashMap<String, String>();
+            Random random = new Random(segments);
+            for (int i = 0; i < 20000; i++) {
+                assertNull(engine.put("key-" + i, "first-" + i));
+                model.put("key-" + i, "first-" + i);
+            }
+            EngineChecks.randomOps(engine, model, random, 200000, 20000, 64);
+            EngineChecks.assertSameContents(model, engine);
+            for (int i = 0; i < 20000; i++) {
+                assertEquals(model.remove("key-" + i), engine.remove("key-" + i));
+            }
+            EngineChecks.assertSameContents(model, engine);
+            EngineChecks.randomOps(engine, model, random, 50000, 5000, 300);
+            EngineChecks.assertSameContents(model, engine);
+        }
+    }
+
+    @Test
+    public void readersSeeEveryKeyWhileTheTableMigrates() throws Exception {
+        KeyValueStore.CompactStorageEngine engine = new KeyValueStore.CompactStorageEngine(1);
+        int keys = 100000;
+        AtomicInteger published = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!done.get() && failures.isEmpty()) {
+                    int limit = published.get();
+                    if (limit == 0) {
+                        continue;
+                    }
+                    int i = random.nextInt(limit);
+                    String value = engine.get("key-" + i);
+                    if (value == null || !value.startsWith("value-" + i + ".")) {
+                        failures.add("key-" + i + " read " + value);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < keys; i++) {
+            engine.put("key-" + i, "value-" + i + ".0");
+            published.set(i + 1);
+        }
+        // Rewrites with other lengths, so pages fill with dead records and get compacted under the readers
+        for (int round = 1; round <= 3; round++) {
+            for (int i = 0; i < keys; i++) {
+                engine.put("key-" + i, "value-" + i + "." + round + (round % 2 == 0 ? "" : "-padding-padding"));
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(keys, engine.size());
+        assertEquals("value-7.3-padding-padding", engine.get("key-7"));
+    }
+}
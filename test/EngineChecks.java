@@ -0,0 +1,57 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+// Drives an engine and a HashMap with the same random operations and checks they agree
+final class EngineChecks {
+    private EngineChecks() {
+    }
+
+    static String value(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder value = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(16);
+            // mostly ASCII, with some multi-byte characters and the separators the text protocol uses
+            value.append(kind == 0 ? 'é' : kind == 1 ? '世' : kind == 2 ? ';' : kind == 3 ? '=' : (char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    static void randomOps(KeyValueStore.StorageEngine engine, Map<String, String> model, Random random,
+                          int operations, int keys, int maxValueLength) {
+        for (int i = 0; i < operations; i++) {
+            String key = "key-" + random.nextInt(keys);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                String value = value(random, maxValueLength);
+                assertEquals("put " + key, model.put(key, value), engine.put(key, value));
+            } else if (op < 8) {
+                assertEquals("remove " + key, model.remove(key), engine.remove(key));
+            } else if (op < 9) {
+                String suffix = value(random, 8);
+                assertEquals("compute " + key, model.compute(key, (k, v) -> v == null ? suffix : v + suffix),
+                        engine.compute(key, (k, v) -> v == null ? suffix : v + suffix));
+            } else {
+                assertEquals("get " + key, model.get(key), engine.get(key));
+            }
+        }
+    }
+
+    static void assertSameContents(Map<String, String> expected, KeyValueStore.StorageEngine engine) {
+        assertEquals(expected.size(), engine.size());
+        Map<String, String> actual = new HashMap<String, String>();
+        Iterator<Map.Entry<String, String>> entries = engine.iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            assertEquals("duplicate key " + entry.getKey(), null, actual.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(expected, actual);
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), engine.get(entry.getKey()));
+        }
+    }
+}
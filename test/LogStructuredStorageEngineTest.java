@@ -0,0 +1,88 @@
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogStructuredStorageEngineTest {
+    private static final int SEGMENT_SIZE = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int segmentFiles(File dir) {
+        return dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".data")).length;
+    }
+
+    @Test
+    public void matchesHashMapThroughCompactionAndReopen() throws Exception {
+        File dir = folder.newFolder("log");
+        Map<String, String> model = new HashMap<String, String>();
+        Random random = new Random(7);
+        KeyValueStore.LogStructuredStorageEngine engine = new KeyValueStore.LogStructuredStorageEngine(dir, SEGMENT_SIZE);
+        try {
+            for (int round = 0; round < 20; round++) {
+                EngineChecks.randomOps(engine, model, random, 5000, 500, 40);
+                engine.compact();
+                EngineChecks.assertSameContents(model, engine);
+            }
+        } finally {
+            engine.close();
+        }
+        engine = new KeyValueStore.LogStructuredStorageEngine(dir, SEGMENT_SIZE);
+        try {
+            EngineChecks.assertSameContents(model, engine);
+            EngineChecks.randomOps(engine, model, random, 5000, 500, 40);
+        } finally {
+            engine.close();
+        }
+        engine = new KeyValueStore.LogStructuredStorageEngine(dir, SEGMENT_SIZE);
+        try {
+            EngineChecks.assertSameContents(model, engine);
+        } finally {
+            engine.close();
+        }
+    }
+
+    // Deletes in a compacted segment must keep shadowing the values older segments still hold
+    @Test
+    public void compactionDropsDeadSegmentsAndKeepsDeletes() throws Exception {
+        File dir = folder.newFolder("log");
+        Map<String, String> model = new HashMap<String, String>();
+        KeyValueStore.LogStructuredStorageEngine engine = new KeyValueStore.LogStructuredStorageEngine(dir, SEGMENT_SIZE);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                engine.put("key-" + i, "value-" + i);
+                model.put("key-" + i, "value-" + i);
+            }
+            for (int i = 0; i < 2000; i += 2) {
+                engine.remove("key-" + i);
+                model.remove("key-" + i);
+            }
+            for (int round = 0; round < 4; round++) {
+                for (int i = 1; i < 2000; i += 2) {
+                    engine.put("key-" + i, "value-" + i + "-" + round);
+                    model.put("key-" + i, "value-" + i + "-" + round);
+                }
+            }
+            int before = segmentFiles(dir);
+            engine.compact();
+            engine.compact();
+            assertTrue(segmentFiles(dir) + " segments after compacting " + before, segmentFiles(dir) < before);
+            EngineChecks.assertSameContents(model, engine);
+        } finally {
+            engine.close();
+        }
+        engine = new KeyValueStore.LogStructuredStorageEngine(dir, SEGMENT_SIZE);
+        try {
+            EngineChecks.assertSameContents(model, engine);
+        } finally {
+            engine.close();
+        }
+    }
+}
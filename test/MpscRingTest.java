@@ -0,0 +1,124 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class MpscRingTest {
+
+    @Test
+    public void holdsCapacityElementsInOrder() {
+        KeyValueStore.MpscRing<Integer> ring = new KeyValueStore.MpscRing<Integer>(8);
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(8));
+        assertEquals(8, ring.size());
+        for (int round = 0; round < 100; round++) {
+            assertEquals(Integer.valueOf(round), ring.poll());
+            assertTrue(ring.offer(round + 8));
+        }
+        for (int i = 100; i < 108; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    // Each producer's elements arrive once, in the order it offered them
+    @Test
+    public void keepsEveryProducersOrder() throws Exception {
+        int producers = 4;
+        int perProducer = 200000;
+        KeyValueStore.MpscRing<long[]> ring = new KeyValueStore.MpscRing<long[]>(64);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (long i = 0; i < perProducer; i++) {
+                    long[] element = {producer, i};
+                    while (!ring.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        long[] next = new long[producers];
+        long received = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (received < (long) producers * perProducer) {
+            long[] element = ring.poll();
+            if (element == null) {
+                if (System.nanoTime() > deadline) {
+                    fail("only " + received + " elements arrived");
+                }
+                Thread.yield();
+                continue;
+            }
+            assertEquals("producer " + element[0], next[(int) element[0]], element[1]);
+            next[(int) element[0]]++;
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    // Callers waiting on a shard when it closes get an exception instead of hanging
+    @Test
+    public void closingTheShardedEngineFailsPendingTasks() throws Exception {
+        KeyValueStore.ShardedStorageEngine engine = new KeyValueStore.ShardedStorageEngine(2);
+        CompletableFuture<Void> blocked = new CompletableFuture<Void>();
+        AtomicBoolean entered = new AtomicBoolean();
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            // Parks one shard thread inside a compute so everything behind it stays queued
+            Future<String> first = callers.submit(() -> engine.compute("k", (k, v) -> {
+                entered.set(true);
+                blocked.join();
+                return "v";
+            }));
+            while (!entered.get()) {
+                Thread.yield();
+            }
+            Future<?>[] queued = new Future<?>[8];
+            for (int i = 0; i < queued.length; i++) {
+                queued[i] = callers.submit(() -> engine.get("k"));
+            }
+            Thread.sleep(200);
+            engine.close();
+            blocked.complete(null);
+            assertEquals("v", first.get(10, TimeUnit.SECONDS));
+            for (Future<?> result : queued) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    fail("a queued get ran after close");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+            try {
+                engine.put("other", "v");
+                fail("put after close");
+            } catch (IllegalStateException expected) {
+                assertEquals("closed", expected.getMessage());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class OffHeapStorageEngineTest {
+
+    @Test
+    public void matchesHashMapAcrossSizeClasses() {
+        KeyValueStore.OffHeapStorageEngine engine = new KeyValueStore.OffHeapStorageEngine();
+        Map<String, String> model = new HashMap<String, String>();
+        Random random = new Random(42);
+        EngineChecks.randomOps(engine, model, random, 100000, 2000, 40);
+        EngineChecks.randomOps(engine, model, random, 20000, 2000, 5000);
+        char[] large = new char[3 << 20];
+        Arrays.fill(large, 'x');
+        String big = new String(large);
+        assertEquals(model.put("key-1", big), engine.put("key-1", big));
+        EngineChecks.assertSameContents(model, engine);
+    }
+
+    // A freed slot is handed to another key at once; a reader still holding the old handle must
+    // see the generation change instead of the new owner's bytes
+    @Test
+    public void readersNeverSeeAnotherKeysValue() throws Exception {
+        KeyValueStore.OffHeapStorageEngine engine = new KeyValueStore.OffHeapStorageEngine();
+        int keys = 64;
+        AtomicBoolean done = new AtomicBoolean();
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; t++) {
+            boolean writer = t < 2;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!done.get() && failures.isEmpty()) {
+                    String key = "key-" + random.nextInt(keys);
+                    if (writer) {
+                        if (random.nextInt(4) == 0) {
+                            engine.remove(key);
+                        } else {
+                            engine.put(key, key + "|" + EngineChecks.value(new Random(random.nextLong()), 24));
+                        }
+                    } else {
+                        String value = engine.get(key);
+                        if (value != null && !value.startsWith(key + "|")) {
+                            failures.add(key + " read " + value);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        Thread.sleep(2000);
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void removedKeysStayRemovedWhenTheirSlotIsReused() {
+        KeyValueStore.OffHeapStorageEngine engine = new KeyValueStore.OffHeapStorageEngine();
+        engine.put("a", "value-a");
+        assertEquals("value-a", engine.remove("a"));
+        engine.put("b", "value-b");
+        assertNull(engine.get("a"));
+        assertEquals("value-b", engine.get("b"));
+        assertEquals(1, engine.size());
+    }
+}
@@ -0,0 +1,169 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static KeyValueStore.WriteAheadLog open(File file, KeyValueStore.StorageEngine target) throws Exception {
+        return KeyValueStore.WriteAheadLog.open(file, target, KeyValueStore.WriteAheadLog.FsyncPolicy.OS, 1, 256);
+    }
+
+    private static Map<String, String> contents(KeyValueStore.StorageEngine engine) {
+        Map<String, String> contents = new HashMap<String, String>();
+        engine.forEach(contents::put);
+        return contents;
+    }
+
+    // A crash in the middle of an append leaves a partial record at the end; replay keeps
+    // everything before it, cuts it off, and later appends land after the last whole record
+    @Test
+    public void replayDropsATornTail() throws Exception {
+        File file = folder.newFile("kvstore.wal");
+        Map<String, String> model = new HashMap<String, String>();
+        KeyValueStore.ConcurrentHashMapStorageEngine base = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        KeyValueStore.StorageEngine engine = new KeyValueStore.DurableStorageEngine(base, open(file, base));
+        EngineChecks.randomOps(engine, model, new Random(3), 2000, 200, 30);
+        engine.close();
+        long whole = file.length();
+
+        base = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        engine = new KeyValueStore.DurableStorageEngine(base, open(file, base));
+        engine.put("torn", "this record loses its last bytes");
+        engine.close();
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(raw.length() - 5);
+        }
+
+        KeyValueStore.ConcurrentHashMapStorageEngine replayed = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        KeyValueStore.WriteAheadLog wal = open(file, replayed);
+        assertEquals(model, contents(replayed));
+        assertEquals(whole, file.length());
+        engine = new KeyValueStore.DurableStorageEngine(replayed, wal);
+        engine.put("after", "the tail");
+        model.put("after", "the tail");
+        engine.close();
+
+        // Garbage that does not checksum is dropped the same way
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(raw.length());
+            raw.write(new byte[] {0, 0, 0, 20, 1, 2, 3, 4, 1, 0, 0, 0, 1});
+        }
+        replayed = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        open(file, replayed).close();
+        assertEquals(model, contents(replayed));
+    }
+
+    // TTLs come back from the WAL: EXPIRE records follow the write they belong to, and a later
+    // plain put clears the deadline again
+    @Test
+    public void replayRestoresTtls() throws Exception {
+        File file = folder.newFile("kvstore.wal");
+        KeyValueStore.ConcurrentHashMapStorageEngine base = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        KeyValueStore.WriteAheadLog wal = open(file, base);
+        KeyValueStore.CacheStorageEngine cache = new KeyValueStore.CacheStorageEngine(
+                new KeyValueStore.DurableStorageEngine(base, wal), 0, () -> 0, 5, null, wal);
+        cache.put("kept", "1", 100000);
+        cache.put("cleared", "2", 100000);
+        cache.put("cleared", "3");
+        cache.put("counter", "1", 100000);
+        cache.compute("counter", (k, v) -> String.valueOf(Long.parseLong(v) + 1));
+        cache.put("later", "4");
+        assertTrue(cache.expire("later", 50000));
+        cache.close();
+
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        base = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        wal = KeyValueStore.WriteAheadLog.open(file, base, deadlines, KeyValueStore.WriteAheadLog.FsyncPolicy.OS, 1, 256);
+        cache = new KeyValueStore.CacheStorageEngine(new KeyValueStore.DurableStorageEngine(base, wal), 0, () -> 0, 5, deadlines, wal);
+        try {
+            assertTrue(cache.ttl("kept") > 90000);
+            assertEquals(-1, cache.ttl("cleared"));
+            assertEquals("2", cache.get("counter"));
+            assertTrue(cache.ttl("counter") > 90000);
+            assertTrue(cache.ttl("later") > 40000 && cache.ttl("later") <= 50000);
+        } finally {
+            cache.close();
+        }
+    }
+
+    // What runSave does: snapshot while writers go on, drop the WAL records the snapshot holds,
+    // keep writing, then restore from the snapshot plus the trimmed log
+    @Test
+    public void snapshotPlusTrimmedLogRestoresTheStore() throws Exception {
+        File dir = folder.newFolder("snapshots");
+        File file = new File(folder.getRoot(), "kvstore.wal");
+        KeyValueStore.ConcurrentHashMapStorageEngine base = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        KeyValueStore.SnapshottingStorageEngine snapshotting = new KeyValueStore.SnapshottingStorageEngine(base);
+        KeyValueStore.WriteAheadLog wal = open(file, base);
+        KeyValueStore.StorageEngine engine = new KeyValueStore.DurableStorageEngine(snapshotting, wal);
+        Map<String, String> model = new HashMap<String, String>();
+        Random random = new Random(11);
+        EngineChecks.randomOps(engine, model, random, 20000, 3000, 50);
+
+        AtomicBoolean saving = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            Random writes = new Random(12);
+            for (int i = 0; saving.get() || i < 1000; i++) {
+                String key = "key-" + writes.nextInt(3000);
+                if (writes.nextInt(4) == 0) {
+                    engine.remove(key);
+                } else {
+                    engine.put(key, EngineChecks.value(writes, 50));
+                }
+            }
+        });
+        writer.start();
+        long[] mark = {0};
+        KeyValueStore.SnapshotFiles.save(dir, snapshotting, 64 * 1024, () -> mark[0] = wal.position());
+        saving.set(false);
+        writer.join();
+        long before = file.length();
+        assertEquals(mark[0], wal.discardBefore(mark[0]));
+        assertTrue(file.length() < before);
+
+        model = contents(engine);
+        EngineChecks.randomOps(engine, model, random, 5000, 3000, 50);
+        engine.close();
+
+        KeyValueStore.ConcurrentHashMapStorageEngine restored = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        KeyValueStore.SnapshotFiles.load(dir, restored);
+        open(file, restored).close();
+        assertEquals(model, contents(restored));
+    }
+
+    @Test
+    public void snapshotKeepsTtls() throws Exception {
+        File dir = folder.newFolder("snapshots");
+        KeyValueStore.SnapshottingStorageEngine snapshotting = new KeyValueStore.SnapshottingStorageEngine(
+                new KeyValueStore.ConcurrentHashMapStorageEngine());
+        KeyValueStore.CacheStorageEngine cache = new KeyValueStore.CacheStorageEngine(snapshotting, 0, () -> 0, 5, null, null);
+        cache.put("expiring", "1", 100000);
+        cache.put("plain", "2");
+        KeyValueStore.SnapshotFiles.save(dir, snapshotting, 64 * 1024, () -> { }, cache::deadlines);
+        cache.close();
+
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        KeyValueStore.ConcurrentHashMapStorageEngine restored = new KeyValueStore.ConcurrentHashMapStorageEngine();
+        KeyValueStore.SnapshotFiles.load(dir, restored, deadlines);
+        cache = new KeyValueStore.CacheStorageEngine(restored, 0, () -> 0, 5, deadlines, null);
+        try {
+            assertEquals("1", cache.get("expiring"));
+            assertTrue(cache.ttl("expiring") > 90000);
+            assertEquals(-1, cache.ttl("plain"));
+        } finally {
+            cache.close();
+        }
+    }
+}